@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Gives mini batches of sessions of similar lengths. The sessions are sorted
+ * by length and cut in buckets of a few batches. At each epoch, the sessions of
+ * a bucket are shuffled and cut in batches, and all the batches are shuffled. A
+ * batch is only padded to its longest session.
+ *
+ * The subclasses read the rows of the sessions of a batch.
+ *
+ * @author Andres Bel Alonso
+ * @param <T>
+ *            The type of a mini batch
+ */
+public abstract class BucketedSessionIterator<T> implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    // the number of batches of a bucket
+    public static final int DEFAULT_BUCKET_BATCHES = 4;
+
+    private final SessionIndex index;
+    private final int batchSize;
+    private final int bucketBatches;
+    private final Random random;
+    // the sessions, from the shortest to the longest
+    private final int[] byLength;
+
+    private List<int[]> batches;
+    private int nextBatch;
+    // the number of sessions of the next batch already given by next(int)
+    private int batchOffset;
+    private int cursor;
+
+    /**
+     * @param index
+     *            The sessions of the cache
+     * @param sessions
+     *            The indexes of the sessions given by this iterator
+     * @param batchSize
+     *            The number of sessions of a batch
+     * @param bucketBatches
+     *            The number of batches of a bucket. The batches are made of more
+     *            different lengths with bigger buckets, but are more shuffled
+     * @param seed
+     *            The seed of the shuffle
+     */
+    protected BucketedSessionIterator(SessionIndex index, int[] sessions, int batchSize, int bucketBatches,
+            long seed) {
+        if (sessions.length == 0) {
+            throw new IllegalArgumentException("There must be at least one session");
+        }
+        if (batchSize <= 0 || bucketBatches <= 0) {
+            throw new IllegalArgumentException("The batch size and the bucket batches must be positive : "
+                    + batchSize + ", " + bucketBatches);
+        }
+        this.index = index;
+        this.batchSize = batchSize;
+        this.bucketBatches = bucketBatches;
+        this.random = new Random(seed);
+        this.byLength = Arrays.stream(sessions).boxed()
+                .sorted(Comparator.comparingInt(index::getLength))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        reset();
+    }
+
+    /**
+     * Shuffles the sessions of each bucket, and the batches
+     */
+    public void reset() {
+        batches = makeBatches(byLength, batchSize, bucketBatches, random);
+        nextBatch = 0;
+        batchOffset = 0;
+        cursor = 0;
+    }
+
+    /**
+     * @param byLength
+     *            The sessions, from the shortest to the longest
+     * @return The shuffled batches of sessions of similar lengths
+     */
+    static List<int[]> makeBatches(int[] byLength, int batchSize, int bucketBatches, Random random) {
+        List<int[]> batches = new ArrayList<>();
+        int bucketSize = batchSize * bucketBatches;
+        for (int start = 0; start < byLength.length; start += bucketSize) {
+            List<Integer> bucket = IntStream.range(start, Math.min(byLength.length, start + bucketSize))
+                    .mapToObj(i -> byLength[i])
+                    .collect(Collectors.toList());
+            Collections.shuffle(bucket, random);
+            for (int i = 0; i < bucket.size(); i += batchSize) {
+                batches.add(bucket.subList(i, Math.min(bucket.size(), i + batchSize)).stream()
+                        .mapToInt(Integer::intValue)
+                        .toArray());
+            }
+        }
+        Collections.shuffle(batches, random);
+        return batches;
+    }
+
+    public boolean hasNext() {
+        return nextBatch < batches.size();
+    }
+
+    /**
+     * Reads the sessions of the next batch
+     */
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return readSessions(nextSessions(batches.get(nextBatch).length - batchOffset));
+    }
+
+    /**
+     * Reads the next num sessions of the shuffled batches. The batch can hold
+     * sessions of several buckets, so it can be padded more than by next()
+     */
+    public T next(int num) {
+        if (num <= 0) {
+            throw new IllegalArgumentException("The number of sessions must be positive : " + num);
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return readSessions(nextSessions(num));
+    }
+
+    /**
+     * @return The next num sessions of the batches, less at the end of the
+     *         epoch
+     */
+    private int[] nextSessions(int num) {
+        int[] res = new int[num];
+        int size = 0;
+        while (size < num && hasNext()) {
+            int[] batch = batches.get(nextBatch);
+            int count = Math.min(num - size, batch.length - batchOffset);
+            System.arraycopy(batch, batchOffset, res, size, count);
+            size += count;
+            batchOffset += count;
+            if (batchOffset == batch.length) {
+                nextBatch++;
+                batchOffset = 0;
+            }
+        }
+        cursor += size;
+        return size < num ? Arrays.copyOf(res, size) : res;
+    }
+
+    private T readSessions(int[] batch) {
+        int[] starts = new int[batch.length];
+        int[] lengths = new int[batch.length];
+        for (int k = 0; k < batch.length; k++) {
+            starts[k] = index.getStart(batch[k]);
+            lengths[k] = index.getLength(batch[k]);
+        }
+        return readRanges(starts, lengths);
+    }
+
+    /**
+     * Reads a batch of sessions of the cache
+     *
+     * @param starts
+     *            The first row of each session
+     * @param lengths
+     *            The number of rows of each session
+     */
+    protected abstract T readRanges(int[] starts, int[] lengths);
+
+    /**
+     * @return The number of sessions of this iterator
+     */
+    public int totalExamples() {
+        return byLength.length;
+    }
+
+    public int batch() {
+        return batchSize;
+    }
+
+    /**
+     * @return The number of sessions given since the last reset
+     */
+    public int cursor() {
+        return cursor;
+    }
+
+}
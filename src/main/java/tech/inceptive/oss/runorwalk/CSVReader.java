@@ -15,23 +15,39 @@
  */
 package tech.inceptive.oss.runorwalk;
 
-import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.logging.log4j.LogManager;
 
 /**
  * A class to help to read a csv line by line. It loads a line, and provides an
  * API to get the readed data
- * 
+ *
+ * The lines are tokenized in a single pass over an internal buffer. The fields
+ * are only kept as offsets in this buffer, and a String is only built when a
+ * field is asked. UTF-8 files are decoded directly from the bytes, the
+ * other encodings go through a java.io.Reader.
+ *
+ * A file whose name ends with .gz is decompressed on another thread, while the
+ * lines already decompressed are read.
+ *
  * @author Andres BEL ALONSO
  */
-public class CSVReader {
+public class CSVReader implements Closeable {
 
     public static class CSVReadingException extends RuntimeException {
         public CSVReadingException(String msg) {
@@ -41,24 +57,166 @@ public class CSVReader {
         public CSVReadingException(Throwable ex) {
             super(ex);
         }
+
+        public CSVReadingException(String msg, Throwable ex) {
+            super(msg, ex);
+        }
+    }
+
+    /**
+     * A line of the csv, detached from the reader. It can be used after the reader
+     * has moved to other lines, and from other threads.
+     */
+    public static class Row {
+
+        private final String[] values;
+        private final Map<String, Integer> colIndexes;
+        private final int lineNumber;
+
+        Row(String[] values, Map<String, Integer> colIndexes, int lineNumber) {
+            this.values = values;
+            this.colIndexes = colIndexes;
+            this.lineNumber = lineNumber;
+        }
+
+        /**
+         * @param colNumber
+         *            the first column index is 0
+         * @return The field content in colNumber, null if the column was not in
+         *         the projection
+         */
+        public String get(int colNumber) {
+            if (colNumber < 0 || colNumber >= values.length) {
+                throw new CSVReadingException("The column number is not in the correct range");
+            }
+            return values[colNumber];
+        }
+
+        /**
+         * @param columnName
+         *            The name of the column
+         * @return The content of the column or an exception if this name does not
+         *         exist
+         */
+        public String get(String columnName) {
+            Integer index = colIndexes == null ? null : colIndexes.get(columnName);
+            if (index == null) {
+                throw new CSVReadingException("The column name " + columnName + " does not exist");
+            }
+            return values[index];
+        }
+
+        public double getDouble(int colNumber) {
+            try {
+                return Double.parseDouble(get(colNumber));
+            } catch (NumberFormatException | NullPointerException ex) {
+                throw new CSVReadingException(
+                        "The field " + get(colNumber) + " of the column " + colNumber + " is not a number");
+            }
+        }
+
+        public long getLong(int colNumber) {
+            try {
+                return Long.parseLong(get(colNumber));
+            } catch (NumberFormatException ex) {
+                throw new CSVReadingException(ex);
+            }
+        }
+
+        public int getInt(int colNumber) {
+            try {
+                return Integer.parseInt(get(colNumber));
+            } catch (NumberFormatException ex) {
+                throw new CSVReadingException(ex);
+            }
+        }
+
+        /**
+         * @return all the blocks of the line
+         */
+        public String[] getValues() {
+            return values;
+        }
+
+        /**
+         * @return The number of the line in the file, as counted by the reader
+         */
+        public int getLineNumber() {
+            return lineNumber;
+        }
     }
 
-    private static InputStream openInputStream(String filePath) {
+    /**
+     * Opens a file, and decompresses it on a read ahead thread if it is a gzip
+     * file
+     */
+    static InputStream openInputStream(String filePath) {
         try {
-            return new FileInputStream(filePath);
+            InputStream file = new FileInputStream(filePath);
+            if (isGzip(filePath)) {
+                return new ReadAheadInputStream(new GZIPInputStream(file, GZIP_BUFFER_SIZE), READ_AHEAD_BUFFER_SIZE,
+                        READ_AHEAD_BUFFERS);
+            }
+            return file;
         } catch (IOException ex) {
             LOGGER.warn(ex);
             throw new CSVReadingException(ex);
         }
     }
 
+    static boolean isGzip(String filePath) {
+        return filePath.endsWith(".gz");
+    }
+
     private static final org.apache.logging.log4j.Logger LOGGER = LogManager.getLogger(CSVReader.class);
 
-    private final BufferedReader reader;
+    private static final int GZIP_BUFFER_SIZE = 256 * 1024;
+    private static final int READ_AHEAD_BUFFER_SIZE = 1024 * 1024;
+    private static final int READ_AHEAD_BUFFERS = 4;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int NO_ESCAPE = -1;
+    // the powers of ten that are exactly represented by a double
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    // the data source : the byte stream is used for utf8, the reader for the
+    // other encodings
+    private final InputStream input;
+    private final Reader reader;
+    private final byte[] byteBuf;
+    private int byteLen = 0;
+    private boolean eof = false;
+
     private String[] colNames;
-    private final String separator;
+    private Map<String, Integer> colIndexes;
+    private final char separator;
     private final boolean hasHeader;
-    private final String escapeChar;
+    private final int escapeChar;
+
+    // the decoded chars. The current line is in [lineStart, lineEnd[
+    private char[] buf = new char[BUFFER_SIZE];
+    private int bufLen = 0;
+    private int pos = 0;
+    private int lineStart = 0;
+    private int lineEnd = 0;
+    private boolean skipLF = false;
+    private boolean multiLine = false;
+    private boolean hasLine = false;
+
+    // the fields of the current line, relative to lineStart
+    private int fieldCount = 0;
+    private int[] fieldStarts = new int[16];
+    private int[] fieldEnds = new int[16];
+    private boolean[] fieldEscaped = new boolean[16];
+    // the columns that are kept, null to keep all the columns
+    private boolean[] projection;
 
     private String curLine;
     private String[] curTab;
@@ -67,14 +225,15 @@ public class CSVReader {
     /**
      * The constructor sets the current line on the first line (who is expected to
      * be the columns name line)
-     * 
+     *
      * Throws tech.inceptive.utils.CSVReader.CSVReadingException If there is a
      * problem when readin the file.
-     * 
+     *
      * @param separator
      *            The character used as separator in the csv file
      * @param filePath
-     *            The absolute path to the csv file that is going to be read.
+     *            The absolute path to the csv file that is going to be read. It
+     *            is decompressed if its name ends with .gz
      * @param hasHeader
      *            True if the file has a first header line. In other words, a line
      *            that names the different columns of the csv file.
@@ -83,8 +242,8 @@ public class CSVReader {
      * @param escapeChar
      *            A character that is used to ignore the separator. If there is a
      *            separator between two escape chars, it will be ignore
-     * 
-     * 
+     *
+     *
      */
     public CSVReader(String separator, String filePath, boolean hasHeader, String encoding, String escapeChar) {
         this(separator, openInputStream(filePath), hasHeader, encoding, escapeChar);
@@ -93,10 +252,10 @@ public class CSVReader {
     /**
      * The constructor sets the current line on the first line (who is expected to
      * be the columns name line)
-     * 
+     *
      * Throws tech.inceptive.utils.CSVReader.CSVReadingException If there is a
      * problem when readin the file.
-     * 
+     *
      * @param separator
      *            The character used as separator in the csv file
      * @param data
@@ -109,22 +268,58 @@ public class CSVReader {
      * @param escapeChar
      *            A character that is used to ignore the separator. If there is a
      *            separator between two escape chars, it will be ignore
-     * 
-     * 
+     *
+     *
      */
     public CSVReader(String separator, InputStream data, boolean hasHeader, String encoding, String escapeChar) {
-        this.separator = separator;
+        this(separator, data, hasHeader, null, encoding, escapeChar);
+    }
+
+    /**
+     * Builds a reader on a part of a csv file that does not start by the header
+     * line. The given header is used to name and check the columns.
+     *
+     * @param header
+     *            The columns names, read by another reader
+     */
+    CSVReader(String separator, InputStream data, String[] header, String encoding, String escapeChar) {
+        this(separator, data, true, header, encoding, escapeChar);
+    }
+
+    private CSVReader(String separator, InputStream data, boolean hasHeader, String[] knownHeader, String encoding,
+            String escapeChar) {
+        if (separator == null || separator.length() != 1) {
+            throw new CSVReadingException("The separator must be a single character : " + separator);
+        }
+        if (escapeChar != null && escapeChar.length() != 1) {
+            throw new CSVReadingException("The escape char must be a single character : " + escapeChar);
+        }
+        this.separator = separator.charAt(0);
         this.hasHeader = hasHeader;
-        this.escapeChar = escapeChar;
+        this.escapeChar = escapeChar == null ? NO_ESCAPE : escapeChar.charAt(0);
         try {
-            reader = new BufferedReader(new InputStreamReader(data, encoding));
-            if (hasHeader) {
-                curLine = reader.readLine();
-                if (escapeChar == null || !curLine.contains(escapeChar)) {
-                    colNames = curLine.split(this.separator, -1);
-                } else {
-                    colNames = readTheLineWithEscapeChars(curLine);
+            Charset charset = Charset.forName(encoding);
+            if (StandardCharsets.UTF_8.equals(charset)) {
+                input = data;
+                reader = null;
+                byteBuf = new byte[BUFFER_SIZE];
+            } else {
+                input = null;
+                reader = new InputStreamReader(data, charset);
+                byteBuf = null;
+            }
+            if (knownHeader != null) {
+                setHeader(knownHeader);
+            } else if (hasHeader) {
+                if (!tokenizeLine()) {
+                    throw new CSVReadingException("The file is empty, there is no header line");
                 }
+                hasLine = true;
+                String[] names = new String[fieldCount];
+                for (int i = 0; i < fieldCount; i++) {
+                    names[i] = buildField(i);
+                }
+                setHeader(names);
 
                 if (colNames.length == 1) {
                     LOGGER.warn("Reading a csv file with only a single column... The separator maybe not the correct");
@@ -142,10 +337,10 @@ public class CSVReader {
     /**
      * The constructor sets the current line on the first line (who is expected to
      * be the columns name line)
-     * 
+     *
      * throws tech.inceptive.oss.openutil.CSVReader.CSVReadingException If there is
      * an IOException during the execution of the read
-     * 
+     *
      * @param separator
      *            The character used as separator in the csv file
      * @param filePath
@@ -162,44 +357,22 @@ public class CSVReader {
      * Reads the next line throws
      * tech.inceptive.oss.openutil.CSVReader.CSVReadingException If there is an
      * IOException during the execution of the read
-     * 
+     *
      * @return true if the readed line is not null
      */
     public boolean readNextLine() {
         try {
             lineCounter++;
-            curLine = reader.readLine();
-            if (curLine == null) {
+            curLine = null;
+            curTab = null;
+            hasLine = tokenizeLine();
+            if (!hasLine) {
                 return false;
             }
-            if (escapeChar == null || !curLine.contains(escapeChar)) {
-                curTab = curLine.split(this.separator, -1);
-            } else {
-                // try to see if the newLine is escaped and read more lines if it is
-                String temp = curLine;
-                boolean escaped = false;
-                do {
-                    int currIndex;
-                    while ((currIndex = temp.indexOf(escapeChar)) >= 0) {
-                        temp = temp.substring(currIndex + 1);
-                        escaped = !escaped;
-                    }
-                    if (escaped) {
-                        String nextLine = reader.readLine();
-                        if (nextLine == null)
-                            throw new CSVReadingException("The line " + lineCounter + " ended unexpectedly");
-                        lineCounter++;
-                        temp = nextLine;
-                        curLine += nextLine;
-                    }
-                } while (escaped);
-
-                curTab = readTheLineWithEscapeChars(curLine);
-            }
-            if (hasHeader && curTab.length != colNames.length) {
-                LOGGER.trace("CSV LINE ERROR : {}, {}", curLine, curTab);
+            if (hasHeader && fieldCount != colNames.length) {
+                LOGGER.trace("CSV LINE ERROR : {}", getCurLine());
                 throw new CSVReadingException("The line " + lineCounter
-                        + " does not have the same size than the titles line, lenght : " + curTab.length);
+                        + " does not have the same size than the titles line, lenght : " + fieldCount);
             }
             return true;
         } catch (IOException ex) {
@@ -210,57 +383,242 @@ public class CSVReader {
 
     /**
      * Returns the content in the column number
-     * 
+     *
      * @param colNumber
      *            the first column index is 0
      * @return The field content in colNumber
      */
     public String getColNumber(int colNumber) {
-        if (colNumber < 0 || colNumber > curTab.length) {
-            throw new CSVReadingException("The column number is not in the correct range");
+        checkColNumber(colNumber);
+        if (curTab != null) {
+            return curTab[colNumber];
         }
-        return curTab[colNumber];
+        return buildField(colNumber);
     }
 
     /**
-     * 
+     *
      * @param columnName
      *            The name of the column
      * @return The content of the column or an exception if this name does not exist
      */
     public String getColName(String columnName) {
-        if (!hasHeader)
+        return getColNumber(getColumnIndex(columnName));
+    }
+
+    /**
+     * Resolves a column once, to use the index based getters in the reading loop.
+     *
+     * @param columnName
+     *            The name of the column
+     * @return The index of the column or an exception if this name does not exist
+     */
+    public int getColumnIndex(String columnName) {
+        if (!hasHeader || colIndexes == null)
             throw new CSVReadingException("The CSV has no header, can't get column by name : " + columnName);
 
-        for (int i = 0; i < colNames.length; i++) {
-            if (colNames[i].equals(columnName)) {
-                return curTab[i];
+        Integer index = colIndexes.get(columnName);
+        if (index == null) {
+            throw new CSVReadingException("The column name " + columnName + " does not exist");
+        }
+        return index;
+    }
+
+    /**
+     * Parses a field of the current line as a double, without building a String
+     * for the usual decimal notations.
+     *
+     * @param colNumber
+     *            the first column index is 0
+     * @return The value of the field
+     */
+    public double getDouble(int colNumber) {
+        checkColNumber(colNumber);
+        int start = lineStart + fieldStarts[colNumber];
+        int end = lineStart + fieldEnds[colNumber];
+        if (fieldEscaped[colNumber]) {
+            return parseDoubleField(getColNumber(colNumber), colNumber);
+        }
+        while (start < end && buf[start] <= ' ') {
+            start++;
+        }
+        while (end > start && buf[end - 1] <= ' ') {
+            end--;
+        }
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean hasDigit = false;
+        boolean afterDot = false;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c >= '0' && c <= '9') {
+                hasDigit = true;
+                if (mantissa != 0 || c != '0') {
+                    digits++;
+                }
+                if (digits > 15) {
+                    // can't be computed exactly with a long and a power of ten
+                    return parseDoubleField(new String(buf, start, end - start), colNumber);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (afterDot) {
+                    exponent--;
+                }
+            } else if (c == '.' && !afterDot) {
+                afterDot = true;
+            } else {
+                break;
+            }
+        }
+        if (i < end && hasDigit && (buf[i] == 'e' || buf[i] == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+                negativeExp = buf[i] == '-';
+                i++;
+            }
+            int exp = 0;
+            int expStart = i;
+            for (; i < end && buf[i] >= '0' && buf[i] <= '9' && exp < 10000; i++) {
+                exp = exp * 10 + (buf[i] - '0');
+            }
+            if (i == expStart) {
+                throw new CSVReadingException(
+                        "The field " + getColNumber(colNumber) + " of the column " + colNumber + " is not a number");
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (i != end || !hasDigit || exponent < -22 || exponent > 22) {
+            // other notations, or values that need a rounding step
+            return parseDoubleField(new String(buf, start, end - start), colNumber);
+        }
+        double value = exponent < 0 ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a field of the current line as a long, without building a String.
+     *
+     * @param colNumber
+     *            the first column index is 0
+     * @return The value of the field
+     */
+    public long getLong(int colNumber) {
+        checkColNumber(colNumber);
+        int start = lineStart + fieldStarts[colNumber];
+        int end = lineStart + fieldEnds[colNumber];
+        if (fieldEscaped[colNumber] || end - start > 18) {
+            try {
+                return Long.parseLong(getColNumber(colNumber));
+            } catch (NumberFormatException ex) {
+                throw new CSVReadingException(ex);
             }
         }
-        throw new CSVReadingException("The column name " + columnName + " does not exist");
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end) {
+            throw new CSVReadingException(
+                    "The field " + getColNumber(colNumber) + " of the column " + colNumber + " is not a number");
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            char c = buf[i];
+            if (c < '0' || c > '9') {
+                throw new CSVReadingException(
+                        "The field " + getColNumber(colNumber) + " of the column " + colNumber + " is not a number");
+            }
+            value = value * 10 + (c - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses a field of the current line as an int, without building a String.
+     *
+     * @param colNumber
+     *            the first column index is 0
+     * @return The value of the field
+     */
+    public int getInt(int colNumber) {
+        long value = getLong(colNumber);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw new CSVReadingException("The field " + getColNumber(colNumber) + " of the column " + colNumber
+                    + " is too big for an int");
+        }
+        return (int) value;
     }
 
     /**
-     * 
+     * Parses a date and a time field of the current line as a timestamp, without
+     * building a String.
+     *
+     * @see TimestampParser
+     * @param dateCol
+     *            The column of the date, as y-M-d
+     * @param timeCol
+     *            The column of the time, as H:m:s:nanos
+     * @param parser
+     *            The parser, it keeps the last date
+     * @return The timestamp in nanos since the epoch
+     */
+    public long getTimestamp(int dateCol, int timeCol, TimestampParser parser) {
+        checkColNumber(dateCol);
+        checkColNumber(timeCol);
+        if (fieldEscaped[dateCol] || fieldEscaped[timeCol]) {
+            return parser.parse(getColNumber(dateCol), getColNumber(timeCol));
+        }
+        return parser.parse(buf, lineStart + fieldStarts[dateCol], lineStart + fieldEnds[dateCol],
+                lineStart + fieldStarts[timeCol], lineStart + fieldEnds[timeCol]);
+    }
+
+    /**
+     *
      * @return the current line as it is
      */
     public String getCurLine() {
+        if (curLine == null && hasLine) {
+            curLine = new String(buf, lineStart, lineEnd - lineStart);
+            if (multiLine) {
+                curLine = curLine.replace("\r", "").replace("\n", "");
+            }
+        }
         return curLine;
     }
 
     /**
-     * 
-     * @return a tab with all the blocks of the current lane
+     *
+     * @return a tab with all the blocks of the current lane. The columns that are
+     *         not in the projection are null
      */
     public String[] getSeparetedCurLine() {
-        if (curLine == null) {
+        if (!hasLine) {
             throw new CSVReadingException("No currentLine");
         }
+        if (curTab == null) {
+            String[] tab = new String[fieldCount];
+            for (int i = 0; i < fieldCount; i++) {
+                if (isProjected(i)) {
+                    tab[i] = buildField(i);
+                }
+            }
+            curTab = tab;
+        }
         return curTab;
     }
 
     /**
-     * 
+     *
      * @param colNb
      *            The column number. The index of the first column is 0;
      * @return The name of the column, or
@@ -280,14 +638,97 @@ public class CSVReader {
     public String[] getHeader() {
         return colNames;
     }
-    
+
     public void setHeader(String[] header) {
         this.colNames = header;
+        if (header == null) {
+            colIndexes = null;
+            return;
+        }
+        colIndexes = new HashMap<>();
+        for (int i = header.length - 1; i >= 0; i--) {
+            // with duplicated names, the first column is used
+            colIndexes.put(header[i], i);
+        }
+    }
+
+    /**
+     * Restricts the reading to some columns. The other columns are only scanned
+     * to find their end, and their content can't be asked.
+     *
+     * @param columnNames
+     *            The names of the columns to read. With no name, all the columns
+     *            are read
+     * @throws CSVReadingException
+     *             If the csv has no header, the columns can't be named
+     */
+    public void setProjection(String... columnNames) {
+        if (columnNames == null || columnNames.length == 0) {
+            projection = null;
+            return;
+        }
+        if (colNames == null) {
+            throw new CSVReadingException("The CSV has no header, can't project the columns by name : "
+                    + Arrays.toString(columnNames));
+        }
+        boolean[] newProjection = new boolean[colNames.length];
+        for (String columnName : columnNames) {
+            newProjection[getColumnIndex(columnName)] = true;
+        }
+        projection = newProjection;
+        curTab = null;
+    }
+
+    /**
+     * @param colNumber
+     *            the first column index is 0
+     * @return true if the content of the column can be read
+     */
+    public boolean isProjected(int colNumber) {
+        return projection == null || (colNumber < projection.length && projection[colNumber]);
+    }
+
+    /**
+     * @return The current line as a Row, that stays valid after the next
+     *         readNextLine
+     */
+    public Row getCurRow() {
+        return new Row(getSeparetedCurLine(), colIndexes, lineCounter);
+    }
+
+    /**
+     * The spliterator reads the next lines of this reader. It must not be used
+     * while the reader is used in another way.
+     *
+     * @param batchSize
+     *            The number of rows given to each split
+     * @return A spliterator on the remaining lines
+     */
+    public Spliterator<Row> spliterator(int batchSize) {
+        return new CSVRowSpliterator(this, batchSize, false);
+    }
+
+    /**
+     * @param batchSize
+     *            The number of rows read in a batch for a parallel processing
+     * @param parallel
+     *            true to get a parallel stream
+     * @return A stream on the remaining lines
+     */
+    public Stream<Row> stream(int batchSize, boolean parallel) {
+        return StreamSupport.stream(spliterator(batchSize), parallel);
     }
-    
+
+    /**
+     * @return A sequential stream on the remaining lines
+     */
+    public Stream<Row> stream() {
+        return stream(CSVRowSpliterator.DEFAULT_BATCH_SIZE, false);
+    }
+
     /**
      * Reads a line. If CSVReadingException is throw, the next line is readed.
-     * 
+     *
      * @param reader
      * @return The output of the last reader.readnextLine() that did not throw an
      *         exception
@@ -300,60 +741,272 @@ public class CSVReader {
         }
     }
 
-    private String[] readTheLineWithEscapeChars(String newLine) {
-        String curLineMet = newLine;
-        List<String> separatedBlocks = new ArrayList<>();
-        int nextEscape = -1;
-        int nextSeparator = -1;
-        while (!"".equals(curLineMet)) {
-            nextEscape = curLineMet.indexOf(this.escapeChar);
-            nextSeparator = curLineMet.indexOf(this.separator);
-            if (nextEscape == -1) {
-                // No more escape characters on the csv
-                String[] otherElmts = curLineMet.split(separator, -1);
-                String[] res = new String[separatedBlocks.size() + otherElmts.length];
-                for (int i = 0; i < separatedBlocks.size(); i++) {
-                    res[i] = separatedBlocks.get(i);
-                }
-                for (int i = separatedBlocks.size(); i < separatedBlocks.size() + otherElmts.length; i++) {
-                    res[i] = otherElmts[i - separatedBlocks.size()];
-                }
-                return res;
-            } else if (nextSeparator >= 0 && nextEscape > nextSeparator) {
-                // the separator commes first
-                separatedBlocks.add(curLineMet.substring(0, nextSeparator));
-                curLineMet = curLineMet.substring(nextSeparator + 1);
-            } else if (nextSeparator < 0) {
-                separatedBlocks.add(curLineMet.replace(escapeChar, ""));
-                break;
+    private void checkColNumber(int colNumber) {
+        if (!hasLine || colNumber < 0 || colNumber >= fieldCount) {
+            throw new CSVReadingException("The column number is not in the correct range");
+        }
+        if (!isProjected(colNumber)) {
+            throw new CSVReadingException("The column " + colNumber + " is not in the projection");
+        }
+    }
+
+    private double parseDoubleField(String field, int colNumber) {
+        try {
+            return Double.parseDouble(field);
+        } catch (NumberFormatException ex) {
+            throw new CSVReadingException(
+                    "The field " + field + " of the column " + colNumber + " is not a number");
+        }
+    }
+
+    /**
+     * Closes the read data. The lines can't be read anymore.
+     */
+    @Override
+    public void close() {
+        try {
+            if (reader != null) {
+                reader.close();
             } else {
-                String temp = curLineMet;
-                boolean escaped = false;
-                StringBuilder sb = new StringBuilder();
-                while ((nextSeparator = temp.indexOf(separator)) >= 0) {
-                    nextEscape = temp.indexOf(escapeChar);
-                    if (!escaped && (nextSeparator < nextEscape || nextEscape < 0)) {
-                        sb.append(temp.substring(0, nextSeparator));
-                        temp = temp.substring(nextSeparator + 1);
-                        break;
+                input.close();
+            }
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    /**
+     * Scans the next line once, and stores the bounds of each field. The escape
+     * chars toggle the escaped state, and a line break in an escaped field does
+     * not end the line.
+     *
+     * @return false if there is no more line to read
+     */
+    private boolean tokenizeLine() throws IOException {
+        if (skipLF) {
+            if (pos == bufLen) {
+                pos -= fill();
+            }
+            if (pos < bufLen && buf[pos] == '\n') {
+                pos++;
+            }
+            skipLF = false;
+        }
+        lineStart = pos;
+        fieldCount = 0;
+        multiLine = false;
+        int fieldBegin = pos;
+        boolean fieldHasEscape = false;
+        boolean escaped = false;
+        final char sep = separator;
+        final int esc = escapeChar;
+        while (true) {
+            if (pos == bufLen) {
+                int shift = fill();
+                pos -= shift;
+                fieldBegin -= shift;
+                if (pos == bufLen) {
+                    // end of the data
+                    if (pos == lineStart && fieldCount == 0) {
+                        return false;
+                    }
+                    if (escaped) {
+                        throw new CSVReadingException("The line " + lineCounter + " ended unexpectedly");
                     }
-                    sb.append(temp.substring(0, nextEscape));
-                    temp = temp.substring(nextEscape + 1);
-                    escaped = !escaped;
+                    addField(fieldBegin, pos, fieldHasEscape);
+                    lineEnd = pos;
+                    return true;
+                }
+            }
+            char c = buf[pos];
+            if (c == esc) {
+                escaped = !escaped;
+                fieldHasEscape = true;
+            } else if (!escaped) {
+                if (c == sep) {
+                    addField(fieldBegin, pos, fieldHasEscape);
+                    fieldBegin = pos + 1;
+                    fieldHasEscape = false;
+                } else if (c == '\n' || c == '\r') {
+                    addField(fieldBegin, pos, fieldHasEscape);
+                    lineEnd = pos;
+                    skipLF = c == '\r';
+                    pos++;
+                    return true;
                 }
-                if (escaped)
-                    throw new CSVReadingException("There is no a close character for open escape char");
-                if (nextSeparator < 0 && nextEscape >= 0) {
-                    sb.append(temp.replace(escapeChar, ""));
-                    temp = "";
+            } else if (c == '\n' || c == '\r') {
+                // a line break in an escaped field, the field goes on in the next line
+                multiLine = true;
+                if (c == '\r' || buf[pos - 1] != '\r') {
+                    lineCounter++;
                 }
+            }
+            pos++;
+        }
+    }
+
+    private void addField(int begin, int end, boolean escaped) {
+        if (fieldCount == fieldStarts.length) {
+            fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+            fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+            fieldEscaped = Arrays.copyOf(fieldEscaped, fieldCount * 2);
+        }
+        if (projection == null || (fieldCount < projection.length && projection[fieldCount])) {
+            fieldStarts[fieldCount] = begin - lineStart;
+            fieldEnds[fieldCount] = end - lineStart;
+            fieldEscaped[fieldCount] = escaped;
+        }
+        fieldCount++;
+    }
 
-                separatedBlocks.add(sb.toString());
-                curLineMet = temp;
+    /**
+     * Builds the String of a field of the current line, without the escape chars
+     */
+    private String buildField(int index) {
+        int start = lineStart + fieldStarts[index];
+        int end = lineStart + fieldEnds[index];
+        if (!fieldEscaped[index]) {
+            return new String(buf, start, end - start);
+        }
+        char[] res = new char[end - start];
+        int len = 0;
+        for (int i = start; i < end; i++) {
+            char c = buf[i];
+            if (c != escapeChar && c != '\n' && c != '\r') {
+                res[len++] = c;
+            }
+        }
+        return new String(res, 0, len);
+    }
+
+    /**
+     * Moves the current line at the beginning of the buffer (or grows the buffer
+     * if the line fills it), and reads more chars.
+     *
+     * @return the number of positions the current line has been moved back.
+     */
+    private int fill() throws IOException {
+        int shift = lineStart;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, bufLen - shift);
+            bufLen -= shift;
+            lineStart = 0;
+        } else if (bufLen == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        // a read can end in the middle of an utf8 sequence, so loop until a char
+        // is decoded
+        int previousLen = bufLen;
+        while (!eof && bufLen == previousLen) {
+            if (buf.length - bufLen < 4) {
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            }
+            if (reader != null) {
+                int n = reader.read(buf, bufLen, buf.length - bufLen);
+                if (n < 0) {
+                    eof = true;
+                } else {
+                    bufLen += n;
+                }
+            } else {
+                decodeBytes();
+            }
+        }
+        return shift;
+    }
+
+    /**
+     * Reads bytes and decodes them in the char buffer. An incomplete utf8
+     * sequence at the end of the bytes is kept for the next call. As in the
+     * StandardCharsets.UTF_8 decoder, the longest valid prefix of an invalid
+     * sequence (overlong form, surrogate, code point above U+10FFFF, missing
+     * continuation byte) is replaced by one U+FFFD.
+     */
+    private void decodeBytes() throws IOException {
+        int toRead = Math.min(byteBuf.length, buf.length - bufLen) - byteLen;
+        int n = toRead > 0 ? input.read(byteBuf, byteLen, toRead) : 0;
+        if (n < 0) {
+            // the bytes left are decoded, a truncated sequence is replaced
+            eof = true;
+            n = 0;
+        }
+        int total = byteLen + n;
+        int i = 0;
+        int len = bufLen;
+        final byte[] bytes = byteBuf;
+        final char[] chars = buf;
+        while (i < total) {
+            int b = bytes[i] & 0xFF;
+            if (b < 0x80) {
+                chars[len++] = (char) b;
+                i++;
+                continue;
+            }
+            int seqLen;
+            int cp;
+            // the range of the second byte, it excludes the overlong forms and
+            // the code points above U+10FFFF
+            int min = 0x80;
+            int max = 0xBF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                seqLen = 2;
+                cp = b & 0x1F;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                seqLen = 3;
+                cp = b & 0x0F;
+                if (b == 0xE0) {
+                    min = 0xA0;
+                }
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                seqLen = 4;
+                cp = b & 0x07;
+                if (b == 0xF0) {
+                    min = 0x90;
+                } else if (b == 0xF4) {
+                    max = 0x8F;
+                }
+            } else {
+                chars[len++] = '\uFFFD';
+                i++;
+                continue;
+            }
+            int k = 1;
+            while (k < seqLen && i + k < total) {
+                int next = bytes[i + k] & 0xFF;
+                if (next < min || next > max) {
+                    break;
+                }
+                cp = (cp << 6) | (next & 0x3F);
+                min = 0x80;
+                max = 0xBF;
+                k++;
+            }
+            if (k < seqLen) {
+                if (i + k == total && !eof) {
+                    // the sequence goes on in the next bytes
+                    break;
+                }
+                // the valid prefix is replaced, the next byte is decoded again
+                // as the start of a new char
+                chars[len++] = '\uFFFD';
+                i += k;
+                continue;
+            }
+            if (seqLen == 4) {
+                chars[len++] = Character.highSurrogate(cp);
+                chars[len++] = Character.lowSurrogate(cp);
+            } else if (Character.isSurrogate((char) cp)) {
+                // an encoded surrogate is replaced as a whole
+                chars[len++] = '\uFFFD';
+            } else {
+                chars[len++] = (char) cp;
             }
+            i += seqLen;
         }
-        String[] resTab = new String[separatedBlocks.size()];
-        return separatedBlocks.toArray(resTab);
+        bufLen = len;
+        byteLen = total - i;
+        System.arraycopy(bytes, i, bytes, 0, byteLen);
     }
 
 }
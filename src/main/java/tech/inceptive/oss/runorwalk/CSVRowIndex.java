@@ -0,0 +1,536 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * The position in bytes of each line of a csv file, with a long key computed
+ * from two of its columns. The lines are not read as Strings : the index is
+ * built from the mapped file, by several threads, and the lines are copied as
+ * they are from the source to the destination, in any order. A line is only
+ * indexed if it has the fields of the header.
+ *
+ * Only UTF8 and ASCII files can be indexed, with an ASCII separator and escape
+ * char. A compressed file can't be indexed.
+ *
+ * @author Andres Bel Alonso
+ */
+public class CSVRowIndex {
+
+    private static final Logger LOGGER = LogManager.getLogger(CSVRowIndex.class);
+
+    /**
+     * Computes the key of a line. The given columns are only valid during the
+     * call
+     */
+    @FunctionalInterface
+    public interface KeyFunction {
+
+        /**
+         * @param first
+         *            The first column of the key, without escape chars
+         * @param second
+         *            The second column of the key, without escape chars
+         * @return The key
+         */
+        long getKey(CharSequence first, CharSequence second);
+    }
+
+    // the file is mapped by segments, a line across two segments is read with a copy
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final int SEGMENT_OVERLAP = 1 << 20;
+    private static final int WRITE_BUFFER_SIZE = 4 * 1024 * 1024;
+    // the size of the parts of the file indexed by a thread
+    private static final int CHUNK_SIZE = ParallelCSVReader.DEFAULT_CHUNK_SIZE;
+
+    private final String filePath;
+    // the header line, with its line break
+    private final long dataStart;
+    private final long fileSize;
+    // false if the last line of the file has no line break
+    private final boolean lastLineBreak;
+    private int size = 0;
+    private long[] offsets;
+    private int[] lengths;
+    private long[] keys;
+
+    private CSVRowIndex(String filePath, long dataStart, long fileSize, boolean lastLineBreak, int capacity) {
+        this.filePath = filePath;
+        this.dataStart = dataStart;
+        this.fileSize = fileSize;
+        this.lastLineBreak = lastLineBreak;
+        this.offsets = new long[capacity];
+        this.lengths = new int[capacity];
+        this.keys = new long[capacity];
+    }
+
+    /**
+     * Indexes the lines of a csv file. The empty lines, and the lines without a
+     * valid key, are not indexed.
+     *
+     * @param filePath
+     *            The path to the csv file
+     * @param separator
+     *            The character used as separator in the csv file
+     * @param hasHeader
+     *            True if the file has a first header line. The header is not
+     *            indexed, but it is copied by writeRows
+     * @param escapeChar
+     *            A character that is used to ignore the separator, or null
+     * @param firstKeyCol
+     *            The index of the first column of the key
+     * @param secondKeyCol
+     *            The index of the second column of the key
+     * @param keyFunctions
+     *            Gives the function that computes the key from the two columns.
+     *            The lines are indexed by several threads, each one gets its own
+     *            function
+     * @return The index of the file
+     */
+    public static CSVRowIndex build(String filePath, String separator, boolean hasHeader, String escapeChar,
+            int firstKeyCol, int secondKeyCol, Supplier<KeyFunction> keyFunctions) {
+        return build(filePath, separator, hasHeader, escapeChar, firstKeyCol, secondKeyCol, keyFunctions, 0);
+    }
+
+    /**
+     * Indexes the lines of the end of a csv file, from the first line that
+     * starts at or after a position. The escaped fields of the file must not
+     * have line breaks, otherwise the start of a line can't be found.
+     *
+     * @see #build(java.lang.String, java.lang.String, boolean, java.lang.String,
+     *      int, int, java.util.function.Supplier)
+     * @param from
+     *            The position in bytes where the indexing starts
+     * @return The index of the end of the file
+     */
+    public static CSVRowIndex build(String filePath, String separator, boolean hasHeader, String escapeChar,
+            int firstKeyCol, int secondKeyCol, Supplier<KeyFunction> keyFunctions, long from) {
+        if (CSVReader.isGzip(filePath)) {
+            throw new CSVReadingException("A compressed file can't be indexed : " + filePath);
+        }
+        if (separator == null || separator.length() != 1 || separator.charAt(0) > 127) {
+            throw new CSVReadingException("The separator must be a single ASCII character : " + separator);
+        }
+        if (escapeChar != null && (escapeChar.length() != 1 || escapeChar.charAt(0) > 127)) {
+            throw new CSVReadingException("The escape char must be a single ASCII character : " + escapeChar);
+        }
+        byte sep = (byte) separator.charAt(0);
+        int esc = escapeChar == null ? -1 : escapeChar.charAt(0);
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            LineScanner scanner = new LineScanner(channel, size, sep, esc);
+            long dataStart = 0;
+            // the lines that have not the fields of the header are not indexed
+            int nbFields = -1;
+            if (hasHeader) {
+                dataStart = scanner.nextLine(-1, -1);
+                nbFields = scanner.getFieldCount();
+            }
+            boolean lastLineBreak = size == 0 || scanner.get(size - 1) == '\n';
+            long lineStart = dataStart;
+            if (from > dataStart && from < size) {
+                scanner.position = from;
+                lineStart = scanner.get(from - 1) == '\n' ? from : scanner.nextLine(-1, -1);
+            } else if (from >= size) {
+                lineStart = size;
+            }
+            // the chunks start on a line start, and are indexed in parallel
+            long[] bounds = ParallelCSVReader.computeChunkBounds(channel, lineStart, size, CHUNK_SIZE, esc,
+                    ForkJoinPool.commonPool());
+            CSVRowIndex[] chunks = new CSVRowIndex[bounds.length - 1];
+            int expectedFields = nbFields;
+            long headerEnd = dataStart;
+            ForkJoinPool.commonPool().submit(() -> IntStream.range(0, chunks.length).parallel().forEach(i -> {
+                // the arrays are sized from the chunk only
+                chunks[i] = new CSVRowIndex(filePath, headerEnd, size, lastLineBreak,
+                        (int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, (bounds[i + 1] - bounds[i]) / 64)));
+                new LineScanner(channel, size, sep, esc).indexLines(chunks[i], bounds[i], bounds[i + 1],
+                        firstKeyCol, secondKeyCol, expectedFields, keyFunctions.get());
+            })).join();
+            long total = Arrays.stream(chunks).mapToLong(chunk -> chunk.size).sum();
+            if (total > Integer.MAX_VALUE - 8) {
+                throw new CSVReadingException("The file " + filePath + " has too many lines to be indexed : "
+                        + total);
+            }
+            CSVRowIndex index = new CSVRowIndex(filePath, dataStart, size, lastLineBreak, (int) Math.max(16, total));
+            for (CSVRowIndex chunk : chunks) {
+                System.arraycopy(chunk.offsets, 0, index.offsets, index.size, chunk.size);
+                System.arraycopy(chunk.lengths, 0, index.lengths, index.size, chunk.size);
+                System.arraycopy(chunk.keys, 0, index.keys, index.size, chunk.size);
+                index.size += chunk.size;
+            }
+            LOGGER.debug("{} lines of {} indexed", index.size, filePath);
+            return index;
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    private void add(long offset, long length, long key) {
+        if (length > Integer.MAX_VALUE) {
+            throw new CSVReadingException("The line at " + offset + " is too long");
+        }
+        if (size == offsets.length) {
+            int capacity = (int) Math.min(Integer.MAX_VALUE - 8, offsets.length * 2L);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+        }
+        offsets[size] = offset;
+        lengths[size] = (int) length;
+        keys[size] = key;
+        size++;
+    }
+
+    /**
+     * @return The number of indexed lines
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The keys of the lines, in the file order
+     */
+    public long[] getKeys() {
+        return Arrays.copyOf(keys, size);
+    }
+
+    /**
+     * @param row
+     *            The index of the line
+     * @return The position in bytes of the line in the file
+     */
+    public long getOffset(int row) {
+        return offsets[row];
+    }
+
+    /**
+     * Copies the header and the indexed lines to a new file. A line without a
+     * line break (the last one of the file) gets one.
+     *
+     * @param order
+     *            The indexes of the lines to write, in the written order
+     * @param destPath
+     *            The path to the written file
+     */
+    public void writeRows(int[] order, String destPath) throws IOException {
+        try (FileChannel dest = FileChannel.open(Paths.get(destPath), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+                RowCopier copier = new RowCopier()) {
+            long position = 0;
+            while (position < dataStart) {
+                position += copier.source.transferTo(position, dataStart - position, dest);
+            }
+            ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            for (int row : order) {
+                copier.copy(row, out, dest);
+            }
+            flush(out, dest);
+        }
+    }
+
+    /**
+     * Merges the lines of two indexes by key, and writes them without header.
+     * With the same key, the line of the first index is written first.
+     *
+     * @param first
+     *            The first index
+     * @param firstOrder
+     *            The lines of the first index, sorted by key
+     * @param second
+     *            The second index
+     * @param secondOrder
+     *            The lines of the second index, sorted by key
+     * @param dest
+     *            The lines are written at the position of the channel
+     */
+    static void mergeRows(CSVRowIndex first, int[] firstOrder, CSVRowIndex second, int[] secondOrder,
+            FileChannel dest) throws IOException {
+        try (RowCopier firstCopier = first.new RowCopier();
+                RowCopier secondCopier = second.new RowCopier()) {
+            ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+            int i = 0;
+            int j = 0;
+            while (i < firstOrder.length || j < secondOrder.length) {
+                if (j == secondOrder.length
+                        || (i < firstOrder.length && first.keys[firstOrder[i]] <= second.keys[secondOrder[j]])) {
+                    firstCopier.copy(firstOrder[i++], out, dest);
+                } else {
+                    secondCopier.copy(secondOrder[j++], out, dest);
+                }
+            }
+            flush(out, dest);
+        }
+    }
+
+    private static void flush(ByteBuffer out, FileChannel dest) throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            dest.write(out);
+        }
+        out.clear();
+    }
+
+    /**
+     * Copies the lines of the file through a write buffer
+     */
+    private class RowCopier implements Closeable {
+
+        private final FileChannel source;
+        private final MappedByteBuffer[] segments;
+
+        RowCopier() throws IOException {
+            source = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+            segments = new MappedByteBuffer[(int) ((fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+        }
+
+        /**
+         * Puts a line in the buffer, the buffer is written in dest when it is full
+         */
+        void copy(int row, ByteBuffer out, FileChannel dest) throws IOException {
+            long offset = offsets[row];
+            int length = lengths[row];
+            if (out.remaining() < length + 1) {
+                flush(out, dest);
+            }
+            int segment = (int) (offset / SEGMENT_SIZE);
+            long segmentStart = segment * SEGMENT_SIZE;
+            long segmentEnd = Math.min(fileSize, segmentStart + SEGMENT_SIZE + SEGMENT_OVERLAP);
+            if (length >= out.capacity()) {
+                // a huge line is copied by the channels
+                long copied = 0;
+                while (copied < length) {
+                    copied += source.transferTo(offset + copied, length - copied, dest);
+                }
+            } else if (offset + length <= segmentEnd) {
+                if (segments[segment] == null) {
+                    segments[segment] = source.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                            segmentEnd - segmentStart);
+                }
+                ByteBuffer line = segments[segment].duplicate();
+                line.position((int) (offset - segmentStart));
+                line.limit((int) (offset - segmentStart) + length);
+                out.put(line);
+            } else {
+                // a line longer than the overlap of the segments
+                int limit = out.position() + length;
+                out.limit(limit);
+                while (out.position() < limit) {
+                    source.read(out, offset + length - (limit - out.position()));
+                }
+                out.limit(out.capacity());
+            }
+            if (offset + length == fileSize && !lastLineBreak) {
+                if (!out.hasRemaining()) {
+                    flush(out, dest);
+                }
+                out.put((byte) '\n');
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+
+    /**
+     * Reads the lines of the mapped file, and keeps the bounds of two of their
+     * fields
+     */
+    private static class LineScanner {
+
+        private final FileChannel channel;
+        private final long size;
+        private final byte separator;
+        private final int escape;
+        private MappedByteBuffer segment;
+        private long segmentStart = -1;
+        private long position = 0;
+
+        private final byte[][] fields = new byte[2][];
+        private final int[] fieldLengths = new int[2];
+        // the ASCII fields are given as chars, without building a String
+        private final char[][] chars = new char[2][];
+        private final CharBuffer[] views = new CharBuffer[2];
+        private boolean emptyLine;
+        private int fieldCount;
+
+        LineScanner(FileChannel channel, long size, byte separator, int escape) {
+            this.channel = channel;
+            this.size = size;
+            this.separator = separator;
+            this.escape = escape;
+            for (int i = 0; i < 2; i++) {
+                fields[i] = new byte[64];
+                chars[i] = new char[64];
+                views[i] = CharBuffer.wrap(chars[i]);
+            }
+        }
+
+        /**
+         * Reads a line, and copies its columns firstCol and secondCol
+         *
+         * @return The position after the line break of the line
+         */
+        long nextLine(int firstCol, int secondCol) throws IOException {
+            fieldLengths[0] = -1;
+            fieldLengths[1] = -1;
+            boolean escaped = false;
+            int col = 0;
+            int target = col == firstCol ? 0 : col == secondCol ? 1 : -1;
+            if (target >= 0) {
+                fieldLengths[target] = 0;
+            }
+            emptyLine = true;
+            while (position < size) {
+                byte b = get(position++);
+                if (b == escape) {
+                    escaped = !escaped;
+                    emptyLine = false;
+                } else if (b == '\n' && !escaped) {
+                    break;
+                } else if (b == separator && !escaped) {
+                    col++;
+                    target = col == firstCol ? 0 : col == secondCol ? 1 : -1;
+                    if (target >= 0) {
+                        fieldLengths[target] = 0;
+                    }
+                    emptyLine = false;
+                } else if (b != '\r') {
+                    emptyLine = false;
+                    if (target >= 0) {
+                        append(target, b);
+                    }
+                }
+            }
+            fieldCount = col + 1;
+            return position;
+        }
+
+        /**
+         * Reads the lines of a part of the file, and adds them to an index
+         *
+         * @param start
+         *            The start of the first line
+         * @param end
+         *            The end of the last line
+         * @param nbFields
+         *            The number of fields of a line, or -1 to index the lines
+         *            with any number of fields
+         */
+        void indexLines(CSVRowIndex index, long start, long end, int firstCol, int secondCol, int nbFields,
+                KeyFunction keyFunction) {
+            try {
+                position = start;
+                long lineStart = start;
+                while (lineStart < end) {
+                    long lineEnd = nextLine(firstCol, secondCol);
+                    if (!emptyLine) {
+                        CharSequence first = getField(0);
+                        CharSequence second = getField(1);
+                        if (nbFields >= 0 && fieldCount != nbFields) {
+                            LOGGER.warn("The line at {} has {} fields instead of {}, it is not indexed", lineStart,
+                                    fieldCount, nbFields);
+                        } else if (first == null || second == null) {
+                            LOGGER.warn("The line at {} has not the key columns, it is not indexed", lineStart);
+                        } else {
+                            try {
+                                index.add(lineStart, lineEnd - lineStart, keyFunction.getKey(first, second));
+                            } catch (RuntimeException ex) {
+                                LOGGER.warn("The line at {} has not a valid key, it is not indexed : {}",
+                                        lineStart, ex.getMessage());
+                            }
+                        }
+                    }
+                    lineStart = lineEnd;
+                }
+            } catch (IOException ex) {
+                LOGGER.warn(ex);
+                throw new CSVReadingException(ex);
+            }
+        }
+
+        /**
+         * @return The number of fields of the last read line
+         */
+        int getFieldCount() {
+            return fieldCount;
+        }
+
+        /**
+         * @return The copied field, or null if the line has not this column. It is
+         *         only valid until the next line
+         */
+        CharSequence getField(int field) {
+            int length = fieldLengths[field];
+            if (length < 0) {
+                return null;
+            }
+            byte[] bytes = fields[field];
+            if (chars[field].length < length) {
+                chars[field] = new char[bytes.length];
+                views[field] = CharBuffer.wrap(chars[field]);
+            }
+            for (int i = 0; i < length; i++) {
+                if (bytes[i] < 0) {
+                    return new String(bytes, 0, length, StandardCharsets.UTF_8);
+                }
+                chars[field][i] = (char) bytes[i];
+            }
+            views[field].clear();
+            views[field].limit(length);
+            return views[field];
+        }
+
+        private void append(int field, byte b) {
+            if (fieldLengths[field] == fields[field].length) {
+                fields[field] = Arrays.copyOf(fields[field], fields[field].length * 2);
+            }
+            fields[field][fieldLengths[field]++] = b;
+        }
+
+        private byte get(long pos) throws IOException {
+            if (segmentStart < 0 || pos < segmentStart || pos >= segmentStart + segment.limit()) {
+                segmentStart = pos / SEGMENT_SIZE * SEGMENT_SIZE;
+                segment = channel.map(FileChannel.MapMode.READ_ONLY, segmentStart,
+                        Math.min(size - segmentStart, SEGMENT_SIZE));
+            }
+            return segment.get((int) (pos - segmentStart));
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+
+import tech.inceptive.oss.runorwalk.CSVReader.Row;
+
+/**
+ * A spliterator on the lines of a CSVReader. The reader can only be read by one
+ * thread, so a split reads a batch of rows and gives them to a sized
+ * spliterator that can be processed by another thread. The number of remaining
+ * lines is unknown, only the splits are SIZED.
+ *
+ * @author Andres Bel Alonso
+ */
+public class CSVRowSpliterator implements Spliterator<Row> {
+
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+
+    private final CSVReader reader;
+    private final int batchSize;
+    private final boolean skipMalformedLines;
+    private boolean finished = false;
+
+    /**
+     * @param reader
+     *            The reader, positioned before the first line to give
+     * @param batchSize
+     *            The number of rows given to each split
+     * @param skipMalformedLines
+     *            If true, the lines that can't be read are skipped (see
+     *            CSVReader.secureReadNextLine), otherwise the exception is thrown
+     */
+    public CSVRowSpliterator(CSVReader reader, int batchSize, boolean skipMalformedLines) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("The batch size must be positive : " + batchSize);
+        }
+        this.reader = reader;
+        this.batchSize = batchSize;
+        this.skipMalformedLines = skipMalformedLines;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Row> action) {
+        if (!readNextLine()) {
+            return false;
+        }
+        action.accept(reader.getCurRow());
+        return true;
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super Row> action) {
+        while (readNextLine()) {
+            action.accept(reader.getCurRow());
+        }
+    }
+
+    @Override
+    public Spliterator<Row> trySplit() {
+        Row[] batch = new Row[batchSize];
+        int n = 0;
+        while (n < batchSize && readNextLine()) {
+            batch[n++] = reader.getCurRow();
+        }
+        if (n == 0) {
+            return null;
+        }
+        return Spliterators.spliterator(batch, 0, n, ORDERED | NONNULL | IMMUTABLE);
+    }
+
+    @Override
+    public long estimateSize() {
+        return finished ? 0 : Long.MAX_VALUE;
+    }
+
+    @Override
+    public int characteristics() {
+        return ORDERED | NONNULL;
+    }
+
+    private boolean readNextLine() {
+        if (finished) {
+            return false;
+        }
+        boolean read = skipMalformedLines ? CSVReader.secureReadNextLine(reader) : reader.readNextLine();
+        finished = !read;
+        return read;
+    }
+
+}
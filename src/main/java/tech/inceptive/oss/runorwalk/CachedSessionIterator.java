@@ -0,0 +1,214 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Gives mini batches of sessions read from the binary cache. Only the sessions
+ * of the current batch are read, so the heap does not depend on the size of
+ * the dataset. The batches are made of sessions of similar lengths, as by the
+ * BucketedSessionIterator.
+ *
+ * To read the next batches while the network learns, wrap it in an
+ * AsyncDataSetIterator.
+ *
+ * The tensors of all the session iterators are built here, by readFeatures,
+ * readLabels and readMask : each one is filled in a flat float buffer in the
+ * [minibatch, features, time] layout, and created with a single Nd4j.create.
+ *
+ * @author Andres Bel Alonso
+ */
+public class CachedSessionIterator extends BucketedSessionIterator<DataSet> implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Gives the class of a row of the cache
+     */
+    @FunctionalInterface
+    public interface RowClass {
+
+        int classOf(SensorDataCache data, int row);
+    }
+
+    private final SensorDataCache data;
+    private final RowClass rowClass;
+    private final int nbClasses;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param data
+     *            The binary cache
+     * @param index
+     *            The sessions of the cache
+     * @param sessions
+     *            The indexes of the sessions given by this iterator
+     * @param batchSize
+     *            The number of sessions of a batch
+     * @param rowClass
+     *            Gives the label of each row
+     * @param nbClasses
+     *            The number of classes of the labels
+     * @param seed
+     *            The seed of the shuffle
+     */
+    public CachedSessionIterator(SensorDataCache data, SessionIndex index, int[] sessions, int batchSize,
+            RowClass rowClass, int nbClasses, long seed) {
+        super(index, sessions, batchSize, DEFAULT_BUCKET_BATCHES, seed);
+        this.data = data;
+        this.rowClass = rowClass;
+        this.nbClasses = nbClasses;
+    }
+
+    /**
+     * Reads the sessions in the [minibatch, features, time] layout
+     */
+    @Override
+    protected DataSet readRanges(int[] starts, int[] lengths) {
+        DataSet res = readBatch(data, starts, lengths, rowClass, nbClasses);
+        if (preProcessor != null) {
+            preProcessor.preProcess(res);
+        }
+        return res;
+    }
+
+    /**
+     * Reads a batch of row ranges of the cache, in the [minibatch, features,
+     * time] layout. The batch is padded to its longest range.
+     *
+     * @param starts
+     *            The first row of each range
+     * @param lengths
+     *            The number of rows of each range
+     */
+    static DataSet readBatch(SensorDataCache data, int[] starts, int[] lengths, RowClass rowClass,
+            int nbClasses) {
+        int length = checkBatchSize(lengths, nbClasses);
+        INDArray mask = readMask(lengths, length);
+        return new DataSet(readFeatures(data, starts, lengths, length),
+                readLabels(data, starts, lengths, length, rowClass, nbClasses), mask, mask.dup());
+    }
+
+    /**
+     * @return The length of the longest range, checked to fit in the arrays
+     */
+    static int checkBatchSize(int[] lengths, int nbClasses) {
+        int length = 0;
+        for (int rangeLength : lengths) {
+            length = Math.max(length, rangeLength);
+        }
+        if ((long) lengths.length * Math.max(SensorDataCache.NB_FEATURES, nbClasses) * length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The batch of " + lengths.length + " sessions of " + length
+                    + " steps is too big");
+        }
+        return length;
+    }
+
+    /**
+     * @return The features of the ranges, [minibatch, features, length]
+     */
+    static INDArray readFeatures(SensorDataCache data, int[] starts, int[] lengths, int length) {
+        int nbFeatures = SensorDataCache.NB_FEATURES;
+        float[] features = new float[starts.length * nbFeatures * length];
+        for (int k = 0; k < starts.length; k++) {
+            for (int j = 0; j < nbFeatures; j++) {
+                int offset = (k * nbFeatures + j) * length;
+                for (int i = 0; i < lengths[k]; i++) {
+                    features[offset + i] = data.getFeature(j, starts[k] + i);
+                }
+            }
+        }
+        return Nd4j.create(features, new int[]{starts.length, nbFeatures, length}, 'c');
+    }
+
+    /**
+     * @return The one hot labels of the ranges, [minibatch, classes, length]
+     */
+    static INDArray readLabels(SensorDataCache data, int[] starts, int[] lengths, int length, RowClass rowClass,
+            int nbClasses) {
+        float[] labels = new float[starts.length * nbClasses * length];
+        for (int k = 0; k < starts.length; k++) {
+            for (int i = 0; i < lengths[k]; i++) {
+                int curClass = rowClass.classOf(data, starts[k] + i);
+                if (curClass >= 0 && curClass < nbClasses) {
+                    labels[(k * nbClasses + curClass) * length + i] = 1;
+                }
+            }
+        }
+        return Nd4j.create(labels, new int[]{starts.length, nbClasses, length}, 'c');
+    }
+
+    /**
+     * @return 1 for the steps of the ranges, 0 for the padding, [minibatch,
+     *         length]
+     */
+    static INDArray readMask(int[] lengths, int length) {
+        float[] mask = new float[lengths.length * length];
+        for (int k = 0; k < lengths.length; k++) {
+            Arrays.fill(mask, k * length, k * length + lengths[k], 1);
+        }
+        return Nd4j.create(mask, new int[]{lengths.length, length}, 'c');
+    }
+
+    @Override
+    public int inputColumns() {
+        return SensorDataCache.NB_FEATURES;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return nbClasses;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+
+}
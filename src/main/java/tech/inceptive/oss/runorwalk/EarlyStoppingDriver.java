@@ -0,0 +1,363 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * Trains a network, and scores it on a hold-out set every few iterations and
+ * after the last one. The best network is kept, and the training stops when the
+ * score has not improved for a few evaluations, when the time budget is spent,
+ * or after the last epoch.
+ *
+ * The score is the loss of the network on the hold-out set, lower is better.
+ *
+ * @author Andres Bel Alonso
+ */
+public class EarlyStoppingDriver {
+
+    private static final Logger LOGGER = LogManager.getLogger(EarlyStoppingDriver.class);
+
+    /**
+     * Called at the end of each epoch, for instance to save a checkpoint
+     */
+    @FunctionalInterface
+    public interface EpochListener {
+
+        void epochDone(MultiLayerNetwork net, int epoch) throws IOException;
+    }
+
+    /**
+     * Trains a network on some batches
+     */
+    @FunctionalInterface
+    public interface Trainer {
+
+        void fit(DataSetIterator batches);
+
+        /**
+         * Fits the batches kept by the trainer, if any. It is called before each
+         * score of the hold-out set, at the end of each epoch and at the end of
+         * the training, so the network is trained on all the given batches.
+         */
+        default void flush() {
+        }
+    }
+
+    private final int evaluationIterations;
+    private final int patience;
+    private final long maxTime;
+
+    private MultiLayerNetwork best = null;
+    private double bestScore = Double.POSITIVE_INFINITY;
+    private long bestIteration = -1;
+    private long nbIterations = 0;
+    private long savedTime = 0;
+
+    /**
+     * @param evaluationIterations
+     *            The number of iterations (mini batches) between two scores of
+     *            the hold-out set
+     * @param patience
+     *            The number of scores without improvement before stopping
+     * @param maxTime
+     *            The maximum training time in nanos, 0 for no limit
+     */
+    public EarlyStoppingDriver(int evaluationIterations, int patience, long maxTime) {
+        if (evaluationIterations <= 0 || patience <= 0 || maxTime < 0) {
+            throw new IllegalArgumentException("Invalid early stopping parameters");
+        }
+        this.evaluationIterations = evaluationIterations;
+        this.patience = patience;
+        this.maxTime = maxTime;
+    }
+
+    /**
+     * Trains the network until it stops improving
+     *
+     * @param net
+     *            The network, trained in place
+     * @param train
+     *            The training batches, reset at each epoch
+     * @param holdOut
+     *            The batches of the hold-out set
+     * @param firstEpoch
+     *            The first epoch to train, when the training is resumed
+     * @param nbEpochs
+     *            The maximum number of epochs
+     * @param listener
+     *            Called at the end of each epoch with the trained network
+     * @return The network with the best score, or the trained network if it
+     *         was never scored
+     */
+    public MultiLayerNetwork train(MultiLayerNetwork net, DataSetIterator train, DataSetIterator holdOut,
+            int firstEpoch, int nbEpochs, EpochListener listener) throws IOException {
+        return train(net, net::fit, train, holdOut, firstEpoch, nbEpochs, listener);
+    }
+
+    /**
+     * Trains the network with a trainer until it stops improving. The trainer is
+     * given the batches between two scores of the hold-out set.
+     *
+     * @param net
+     *            The network, trained in place by the trainer
+     * @param trainer
+     *            Trains the network on some batches, for instance on several
+     *            threads
+     * @see #train(MultiLayerNetwork, DataSetIterator, DataSetIterator, int, int,
+     *      EpochListener)
+     */
+    public MultiLayerNetwork train(MultiLayerNetwork net, Trainer trainer, DataSetIterator train,
+            DataSetIterator holdOut, int firstEpoch, int nbEpochs, EpochListener listener) throws IOException {
+        long start = System.nanoTime();
+        int evaluationsWithoutImprovement = 0;
+        long epochIterations = 0;
+        String stopReason = "last epoch done";
+        training:
+        for (int epoch = firstEpoch; epoch < nbEpochs; epoch++) {
+            // the batches are shuffled again at each epoch
+            train.reset();
+            long iterationsBefore = nbIterations;
+            while (train.hasNext()) {
+                // the hold-out set is scored every evaluationIterations batches
+                // of the whole training, a chunk can span two epochs
+                int limit = (int) (evaluationIterations - nbIterations % evaluationIterations);
+                BatchLimit batches = new BatchLimit(train, limit);
+                trainer.fit(batches);
+                nbIterations += batches.nbBatches;
+                if (nbIterations % evaluationIterations == 0) {
+                    trainer.flush();
+                    if (evaluate(net, holdOut)) {
+                        evaluationsWithoutImprovement = 0;
+                    } else {
+                        evaluationsWithoutImprovement++;
+                    }
+                    if (evaluationsWithoutImprovement >= patience) {
+                        stopReason = "no improvement in " + patience + " evaluations";
+                        break training;
+                    }
+                }
+                if (maxTime > 0 && System.nanoTime() - start > maxTime) {
+                    stopReason = "time budget spent";
+                    break training;
+                }
+            }
+            epochIterations = nbIterations - iterationsBefore;
+            trainer.flush();
+            LOGGER.debug("Epoch {} done", epoch);
+            listener.epochDone(net, epoch);
+        }
+        // the training stopped early, or the last epoch is done
+        trainer.flush();
+        if (nbIterations % evaluationIterations != 0) {
+            // the last batches of the training
+            evaluate(net, holdOut);
+        }
+        long elapsed = System.nanoTime() - start;
+        if (epochIterations == 0 && train.batch() > 0) {
+            // stopped in the first epoch
+            epochIterations = (train.totalExamples() + train.batch() - 1) / train.batch();
+        }
+        if (nbIterations > 0) {
+            // the time of the remaining epochs, at the mean time by iteration
+            long plannedIterations = (nbEpochs - firstEpoch) * epochIterations;
+            savedTime = Math.max(0, (long) ((double) elapsed / nbIterations * (plannedIterations - nbIterations)));
+        }
+        LOGGER.info("Training stopped ({}) after {} iterations in {} s, about {} s saved. Best hold-out score {}"
+                + " at iteration {}", stopReason, nbIterations, elapsed / 1_000_000_000, savedTime / 1_000_000_000,
+                bestScore, bestIteration);
+        return best != null ? best : net;
+    }
+
+    /**
+     * Scores the network on the hold-out set, and keeps a copy if it is the best
+     *
+     * @return true if the score has improved
+     */
+    private boolean evaluate(MultiLayerNetwork net, DataSetIterator holdOut) {
+        double score = score(net, holdOut);
+        boolean improved = score < bestScore;
+        if (improved) {
+            bestScore = score;
+            bestIteration = nbIterations;
+            best = net.clone();
+        }
+        LOGGER.debug("Iteration {}, hold-out score {}, best {} at iteration {}", nbIterations, score, bestScore,
+                bestIteration);
+        return improved;
+    }
+
+    /**
+     * @return The mean loss of the network on the batches, weighted by their
+     *         number of series
+     */
+    static double score(MultiLayerNetwork net, DataSetIterator dataset) {
+        if (dataset.resetSupported()) {
+            dataset.reset();
+        }
+        double sum = 0;
+        long nbExamples = 0;
+        while (dataset.hasNext()) {
+            DataSet batch = dataset.next();
+            sum += net.score(batch, false) * batch.numExamples();
+            nbExamples += batch.numExamples();
+        }
+        return nbExamples == 0 ? Double.NaN : sum / nbExamples;
+    }
+
+    /**
+     * The next batches of an iterator, up to a limit. It can't be reset, so the
+     * trainer can't read the batches of the next evaluation.
+     */
+    private static class BatchLimit implements DataSetIterator {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DataSetIterator source;
+        private final int limit;
+        private int nbBatches = 0;
+
+        private BatchLimit(DataSetIterator source, int limit) {
+            this.source = source;
+            this.limit = limit;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nbBatches < limit && source.hasNext();
+        }
+
+        @Override
+        public DataSet next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            nbBatches++;
+            return source.next();
+        }
+
+        /**
+         * Reads num examples of the source, counted as one batch
+         */
+        @Override
+        public DataSet next(int num) {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            nbBatches++;
+            return source.next(num);
+        }
+
+        @Override
+        public int totalExamples() {
+            return source.totalExamples();
+        }
+
+        @Override
+        public int inputColumns() {
+            return source.inputColumns();
+        }
+
+        @Override
+        public int totalOutcomes() {
+            return source.totalOutcomes();
+        }
+
+        @Override
+        public boolean resetSupported() {
+            return false;
+        }
+
+        /**
+         * The source is already read ahead
+         */
+        @Override
+        public boolean asyncSupported() {
+            return false;
+        }
+
+        /**
+         * Does nothing, resetSupported() is false : the source is reset by the
+         * driver at each epoch, not by the trainer
+         */
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public int batch() {
+            return source.batch();
+        }
+
+        @Override
+        public int cursor() {
+            return source.cursor();
+        }
+
+        @Override
+        public int numExamples() {
+            return source.numExamples();
+        }
+
+        @Override
+        public void setPreProcessor(DataSetPreProcessor preProcessor) {
+            source.setPreProcessor(preProcessor);
+        }
+
+        @Override
+        public DataSetPreProcessor getPreProcessor() {
+            return source.getPreProcessor();
+        }
+
+        @Override
+        public List<String> getLabels() {
+            return source.getLabels();
+        }
+    }
+
+    public double getBestScore() {
+        return bestScore;
+    }
+
+    /**
+     * @return The iteration of the best score, or -1 if the network was never
+     *         scored
+     */
+    public long getBestIteration() {
+        return bestIteration;
+    }
+
+    public long getNbIterations() {
+        return nbIterations;
+    }
+
+    /**
+     * @return The estimated training time in nanos saved by stopping early
+     */
+    public long getSavedTime() {
+        return savedTime;
+    }
+
+}
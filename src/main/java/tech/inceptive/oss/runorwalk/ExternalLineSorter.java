@@ -0,0 +1,284 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Sorts lines by a long key with a bounded memory. The lines are kept in memory
+ * until they reach the memory budget, then they are sorted and spilled in a
+ * temporary file (a run). At the end, the runs are merged with a heap.
+ *
+ * The sort is stable : lines with the same key are written in the order they
+ * were added.
+ *
+ * @author Andres Bel Alonso
+ */
+public class ExternalLineSorter implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger(ExternalLineSorter.class);
+
+    // the approximated memory used by a line, besides its chars
+    private static final int LINE_OVERHEAD = 64;
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // the maximum number of runs merged at the same time
+    private static final int MAX_FAN_IN = 64;
+
+    @FunctionalInterface
+    private interface LineSink {
+
+        void accept(long key, String line) throws IOException;
+    }
+
+    private static final class KeyedLine {
+
+        private final long key;
+        private final String line;
+
+        KeyedLine(long key, String line) {
+            this.key = key;
+            this.line = line;
+        }
+    }
+
+    /**
+     * The next line of a run, during the merge
+     */
+    private static final class RunCursor {
+
+        private final DataInputStream input;
+        private final int runIndex;
+        private long key;
+        private String line;
+
+        RunCursor(DataInputStream input, int runIndex) {
+            this.input = input;
+            this.runIndex = runIndex;
+        }
+
+        boolean next() throws IOException {
+            try {
+                key = input.readLong();
+            } catch (EOFException ex) {
+                return false;
+            }
+            byte[] bytes = new byte[input.readInt()];
+            input.readFully(bytes);
+            line = new String(bytes, StandardCharsets.UTF_8);
+            return true;
+        }
+    }
+
+    private final long memoryBudget;
+    private final File tempDir;
+    private final List<KeyedLine> buffer = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private long nbLines = 0;
+
+    /**
+     * @param memoryBudget
+     *            The approximated memory in bytes used by the lines kept in
+     *            memory
+     * @param tempDir
+     *            The directory of the runs, or null for the default temporary
+     *            directory
+     */
+    public ExternalLineSorter(long memoryBudget, File tempDir) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("The memory budget must be positive : " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+        this.tempDir = tempDir;
+    }
+
+    /**
+     * Adds a line to sort. A run is spilled if the memory budget is reached.
+     */
+    public void add(long key, String line) throws IOException {
+        buffer.add(new KeyedLine(key, line));
+        bufferedBytes += LINE_OVERHEAD + 2L * line.length();
+        nbLines++;
+        if (bufferedBytes >= memoryBudget) {
+            spill();
+        }
+    }
+
+    /**
+     * @return The number of added lines
+     */
+    public long getNbLines() {
+        return nbLines;
+    }
+
+    /**
+     * Writes all the added lines, sorted by key. The runs are deleted at the
+     * end, even if the writing fails.
+     *
+     * @param out
+     *            Each line is written with println
+     */
+    public void writeSorted(PrintWriter out) throws IOException {
+        try {
+            if (runs.isEmpty()) {
+                // everything fits in memory
+                buffer.sort(Comparator.comparingLong(l -> l.key));
+                for (KeyedLine line : buffer) {
+                    out.println(line.line);
+                }
+                buffer.clear();
+                return;
+            }
+            if (!buffer.isEmpty()) {
+                spill();
+            }
+            // too many runs are merged by groups first
+            while (runs.size() > MAX_FAN_IN) {
+                List<File> merged = new ArrayList<>();
+                try {
+                    for (int i = 0; i < runs.size(); i += MAX_FAN_IN) {
+                        List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_FAN_IN));
+                        File run = createRun();
+                        merged.add(run);
+                        try (DataOutputStream runOut = openRun(run)) {
+                            merge(group, (key, line) -> writeLine(runOut, key, line));
+                        }
+                        for (File groupRun : group) {
+                            deleteRun(groupRun);
+                        }
+                    }
+                } catch (IOException | RuntimeException ex) {
+                    for (File run : merged) {
+                        deleteRun(run);
+                    }
+                    throw ex;
+                }
+                runs.clear();
+                runs.addAll(merged);
+            }
+            LOGGER.debug("Merging {} runs of {} lines", runs.size(), nbLines);
+            merge(runs, (key, line) -> out.println(line));
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Merges sorted runs with a heap
+     */
+    private void merge(List<File> toMerge, LineSink sink) throws IOException {
+        // with the same key, the first run has the first line
+        PriorityQueue<RunCursor> heap = new PriorityQueue<>(toMerge.size(),
+                Comparator.<RunCursor>comparingLong(c -> c.key).thenComparingInt(c -> c.runIndex));
+        List<RunCursor> cursors = new ArrayList<>();
+        int readBufferSize = (int) Math.max(IO_BUFFER_SIZE / 8,
+                Math.min(IO_BUFFER_SIZE, memoryBudget / toMerge.size()));
+        try {
+            for (int i = 0; i < toMerge.size(); i++) {
+                RunCursor cursor = new RunCursor(new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(toMerge.get(i)), readBufferSize)), i);
+                cursors.add(cursor);
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+            while (!heap.isEmpty()) {
+                RunCursor cursor = heap.poll();
+                sink.accept(cursor.key, cursor.line);
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+        } finally {
+            for (RunCursor cursor : cursors) {
+                cursor.input.close();
+            }
+        }
+    }
+
+    /**
+     * Deletes the runs
+     */
+    @Override
+    public void close() {
+        for (File run : runs) {
+            deleteRun(run);
+        }
+        runs.clear();
+        buffer.clear();
+    }
+
+    /**
+     * Sorts the lines in memory, and writes them in a run file : the key, the
+     * length of the UTF8 line, and the line bytes.
+     */
+    private void spill() throws IOException {
+        buffer.sort(Comparator.comparingLong(l -> l.key));
+        File run = createRun();
+        runs.add(run);
+        try (DataOutputStream out = openRun(run)) {
+            for (KeyedLine line : buffer) {
+                writeLine(out, line.key, line.line);
+            }
+        }
+        LOGGER.debug("Run {} spilled with {} lines", runs.size(), buffer.size());
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    private File createRun() throws IOException {
+        return File.createTempFile("reorder-run", ".bin", tempDir);
+    }
+
+    private static DataOutputStream openRun(File run) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), IO_BUFFER_SIZE));
+    }
+
+    private static void writeLine(DataOutputStream out, long key, String line) throws IOException {
+        byte[] bytes = line.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(key);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Deletes a run, if it has not been deleted after its merge
+     */
+    private static void deleteRun(File run) {
+        if (!run.delete() && run.exists()) {
+            LOGGER.warn("Can't delete the run {}", run);
+        }
+    }
+
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+
+/**
+ * Trains several activity networks with different hyperparameters, and writes
+ * their scores in a leaderboard. The dataset is read once : all the candidates
+ * read their batches from the same mapped cache and session index.
+ *
+ * The candidates are trained concurrently on a bounded pool. Before starting, a
+ * candidate reserves an estimate of the memory of its training in a memory
+ * budget, so big candidates wait for the others instead of running out of
+ * memory.
+ *
+ * @author Andres Bel Alonso
+ */
+public class HyperparameterSweep {
+
+    private static final Logger LOGGER = LogManager.getLogger(HyperparameterSweep.class);
+
+    private static final int NB_CLASSES = 2;
+    private static final long MB = 1024 * 1024;
+
+    /**
+     * The hyperparameters of a network
+     */
+    public static final class Candidate {
+
+        private final int interNeurons;
+        private final double learningRate;
+        private final int nbEpochs;
+
+        public Candidate(int interNeurons, double learningRate, int nbEpochs) {
+            this.interNeurons = interNeurons;
+            this.learningRate = learningRate;
+            this.nbEpochs = nbEpochs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "neurons %d, learning rate %g, epochs %d", interNeurons,
+                    learningRate, nbEpochs);
+        }
+    }
+
+    /**
+     * The scores of a trained candidate
+     */
+    public static final class Result {
+
+        private final Candidate candidate;
+        // the best hold-out loss, lower is better
+        private final double score;
+        private final double accuracy;
+        private final double f1;
+        private final long nbIterations;
+        private final long time;
+
+        private Result(Candidate candidate, double score, double accuracy, double f1, long nbIterations,
+                long time) {
+            this.candidate = candidate;
+            this.score = score;
+            this.accuracy = accuracy;
+            this.f1 = f1;
+            this.nbIterations = nbIterations;
+            this.time = time;
+        }
+
+        public Candidate getCandidate() {
+            return candidate;
+        }
+
+        public double getScore() {
+            return score;
+        }
+
+        public double getAccuracy() {
+            return accuracy;
+        }
+
+        public double getF1() {
+            return f1;
+        }
+    }
+
+    private final SensorDataCache data;
+    private final SessionIndex sessions;
+    private final int[] trainSessions;
+    private final int[] testSessions;
+    private final int batchSize;
+    private final int evaluationIterations;
+    private final int patience;
+    private final int maxLength;
+
+    private final List<Result> results = new ArrayList<>();
+
+    /**
+     * @param data
+     *            The binary cache, shared by the candidates
+     * @param sessions
+     *            The sessions of the cache
+     * @param trainSessions
+     *            The sessions the candidates are trained on
+     * @param testSessions
+     *            The hold-out sessions the candidates are scored on
+     * @param batchSize
+     *            The number of sessions of a mini batch
+     * @param evaluationIterations
+     *            The number of mini batches between two scores of the hold-out
+     *            set
+     * @param patience
+     *            A candidate stops after this number of scores without
+     *            improvement
+     */
+    public HyperparameterSweep(SensorDataCache data, SessionIndex sessions, int[] trainSessions,
+            int[] testSessions, int batchSize, int evaluationIterations, int patience) {
+        this.data = data;
+        this.sessions = sessions;
+        this.trainSessions = trainSessions;
+        this.testSessions = testSessions;
+        this.batchSize = batchSize;
+        this.evaluationIterations = evaluationIterations;
+        this.patience = patience;
+        this.maxLength = IntStream.concat(IntStream.of(trainSessions), IntStream.of(testSessions))
+                .map(sessions::getLength)
+                .max()
+                .orElse(0);
+    }
+
+    public static void main(String[] args) throws IOException, NoSuchFieldException, IllegalAccessException {
+        // parameters
+        String csvPath = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset.csv";
+        String leaderboardPath = csvPath + ".leaderboard.csv";
+        // the number of candidates trained at the same time
+        int nbThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+        // the memory the running candidates can use, in MB
+        int memoryBudget = 4096;
+        // a grid of all the combinations, or random candidates
+        boolean randomSearch = false;
+        int nbRandomCandidates = 20;
+        int[] interNeurons = {4, 8, 16, 32};
+        // for a random search, the learning rate is drawn between the first and
+        // the last one, on a log scale
+        double[] learningRates = {0.001, 0.005, 0.01, 0.05};
+        int[] nbEpochs = {20, 50};
+        int batchSize = 32;
+        int evaluationIterations = 50;
+        int patience = 5;
+        long maxGap = SessionSegmenter.DEFAULT_MAX_GAP;
+        int maxSessionLength = 0;
+
+        // the networks are small, they are trained on the cpu cores
+        RunExample.setBackendPriorities(1, 0);
+
+        SensorDataCache data = SensorDataCache.open(csvPath, csvPath + ".bin");
+        SessionIndex sessions = SessionIndex.build(data, maxGap, maxSessionLength);
+        // the same train test separation as the RunExample
+        double trainRatio = 0.7;
+        List<Integer> shuffled = IntStream.range(0, sessions.size()).boxed().collect(Collectors.toList());
+        Collections.shuffle(shuffled, new Random(33));
+        int trainSize = (int) (sessions.size() * trainRatio);
+        int[] trainSessions = shuffled.subList(0, trainSize).stream().mapToInt(Integer::intValue).toArray();
+        int[] testSessions = shuffled.subList(trainSize, shuffled.size()).stream().mapToInt(Integer::intValue)
+                .toArray();
+
+        List<Candidate> candidates = randomSearch
+                ? random(nbRandomCandidates, interNeurons, learningRates[0],
+                        learningRates[learningRates.length - 1], nbEpochs, 123)
+                : grid(interNeurons, learningRates, nbEpochs);
+        HyperparameterSweep sweep = new HyperparameterSweep(data, sessions, trainSessions, testSessions, batchSize,
+                evaluationIterations, patience);
+        List<Result> leaderboard = sweep.run(candidates, nbThreads, memoryBudget * MB, leaderboardPath);
+        if (!leaderboard.isEmpty()) {
+            LOGGER.info("Best candidate : {}", leaderboard.get(0).getCandidate());
+        }
+    }
+
+    /**
+     * @return All the combinations of the values
+     */
+    public static List<Candidate> grid(int[] interNeurons, double[] learningRates, int[] nbEpochs) {
+        List<Candidate> candidates = new ArrayList<>();
+        for (int neurons : interNeurons) {
+            for (double learningRate : learningRates) {
+                for (int epochs : nbEpochs) {
+                    candidates.add(new Candidate(neurons, learningRate, epochs));
+                }
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * @return Random candidates, the learning rate is drawn on a log scale
+     */
+    public static List<Candidate> random(int nbCandidates, int[] interNeurons, double minLearningRate,
+            double maxLearningRate, int[] nbEpochs, long seed) {
+        Random random = new Random(seed);
+        List<Candidate> candidates = new ArrayList<>(nbCandidates);
+        double logMin = Math.log(minLearningRate);
+        double logMax = Math.log(maxLearningRate);
+        for (int i = 0; i < nbCandidates; i++) {
+            candidates.add(new Candidate(interNeurons[random.nextInt(interNeurons.length)],
+                    Math.exp(logMin + random.nextDouble() * (logMax - logMin)),
+                    nbEpochs[random.nextInt(nbEpochs.length)]));
+        }
+        return candidates;
+    }
+
+    /**
+     * Trains all the candidates. The leaderboard is written again each time a
+     * candidate is done, so it can be read during the sweep.
+     *
+     * @param nbThreads
+     *            The maximum number of candidates trained at the same time
+     * @param memoryBudget
+     *            The memory in bytes the running candidates can use
+     * @param leaderboardPath
+     *            The csv file of the results, from the best to the worst
+     * @return The results, from the best to the worst
+     */
+    public List<Result> run(List<Candidate> candidates, int nbThreads, long memoryBudget, String leaderboardPath)
+            throws IOException {
+        long start = System.nanoTime();
+        int budgetMB = (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudget / MB));
+        Semaphore memory = new Semaphore(budgetMB, true);
+        ExecutorService workers = Executors.newFixedThreadPool(nbThreads, r -> {
+            Thread thread = new Thread(r, "sweep");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Path leaderboard = Paths.get(leaderboardPath);
+        try {
+            List<Future<?>> done = new ArrayList<>(candidates.size());
+            for (Candidate candidate : candidates) {
+                long estimate = estimateMemory(candidate, batchSize, maxLength);
+                // a candidate bigger than the budget runs alone
+                int neededMB = (int) Math.min(budgetMB, (estimate + MB - 1) / MB);
+                done.add(workers.submit(() -> {
+                    memory.acquire(neededMB);
+                    try {
+                        Result result = train(candidate);
+                        addResult(result, leaderboard);
+                    } finally {
+                        memory.release(neededMB);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : done) {
+                try {
+                    future.get();
+                } catch (ExecutionException ex) {
+                    // the other candidates go on
+                    LOGGER.warn("A candidate failed", ex.getCause());
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } finally {
+            workers.shutdownNow();
+        }
+        List<Result> sorted = writeResults(leaderboard);
+        LOGGER.info("{} candidates trained in {} s, leaderboard in {}", sorted.size(),
+                (System.nanoTime() - start) / 1_000_000_000, leaderboardPath);
+        return sorted;
+    }
+
+    /**
+     * A rough estimate of the memory of a training : the parameters, their
+     * gradients and the updater state, and the activations of a mini batch of
+     * the longest sessions with their gradients.
+     *
+     * @return The estimated memory in bytes
+     */
+    static long estimateMemory(Candidate candidate, int batchSize, int maxLength) {
+        long n = candidate.interNeurons;
+        long nIn = SensorDataCache.NB_FEATURES;
+        // GravesLSTM : 4 gates with their input, recurrent and bias weights, and
+        // 3 peepholes. Then the output layer
+        long params = 4 * n * (nIn + n + 1) + 3 * n + n * NB_CLASSES + NB_CLASSES;
+        // by step : the input, the gates and cell of the LSTM, the output and the
+        // labels
+        long activations = (long) batchSize * maxLength * (nIn + 10 * n + 2 * NB_CLASSES);
+        return Float.BYTES * (3 * params + 2 * activations);
+    }
+
+    private Result train(Candidate candidate) throws IOException {
+        long start = System.nanoTime();
+        LOGGER.info("Training {}", candidate);
+        MultiLayerNetwork net = new MultiLayerNetwork(RunExample.buildConfiguration(candidate.interNeurons,
+                candidate.learningRate, 0, 0));
+        net.init();
+        EarlyStoppingDriver driver = new EarlyStoppingDriver(evaluationIterations, patience, 0);
+        net = driver.train(net, new CachedSessionIterator(data, sessions, trainSessions, batchSize,
+                SensorDataCache::getActivity, NB_CLASSES, 123), testIterator(), 0, candidate.nbEpochs,
+                (trained, epoch) -> {
+                });
+        // the pool already uses the cores, the candidate is evaluated on its thread
+        Evaluation eval = RunExample.evaluate(net, testIterator(), 1);
+        Result result = new Result(candidate, driver.getBestScore(), eval.accuracy(), eval.f1(),
+                driver.getNbIterations(), System.nanoTime() - start);
+        LOGGER.info("{} : score {}, accuracy {}, f1 {}", candidate, result.score, result.accuracy, result.f1);
+        return result;
+    }
+
+    private CachedSessionIterator testIterator() {
+        return new CachedSessionIterator(data, sessions, testSessions, batchSize, SensorDataCache::getActivity,
+                NB_CLASSES, 123);
+    }
+
+    /**
+     * Adds the result of a candidate, and writes the leaderboard again
+     */
+    private synchronized void addResult(Result result, Path leaderboard) throws IOException {
+        results.add(result);
+        writeResults(leaderboard);
+    }
+
+    /**
+     * Writes the leaderboard. The results are sorted and written under the same
+     * lock, so an older leaderboard can't replace a newer one.
+     *
+     * @return The results, from the best to the worst
+     */
+    private synchronized List<Result> writeResults(Path leaderboard) throws IOException {
+        List<Result> sorted = new ArrayList<>(results);
+        sorted.sort(Comparator.comparingDouble(Result::getScore));
+        writeLeaderboard(sorted, leaderboard);
+        return sorted;
+    }
+
+    /**
+     * Writes the leaderboard in a temporary file that replaces the previous one
+     */
+    private static synchronized void writeLeaderboard(List<Result> sorted, Path leaderboard) throws IOException {
+        Path temp = leaderboard.resolveSibling(leaderboard.getFileName() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            writer.write("rank,interNeurons,learningRate,nbEpochs,holdOutScore,accuracy,f1,iterations,seconds");
+            writer.newLine();
+            for (int i = 0; i < sorted.size(); i++) {
+                Result result = sorted.get(i);
+                writer.write(String.format(Locale.ROOT, "%d,%d,%g,%d,%.6f,%.4f,%.4f,%d,%.1f", i + 1,
+                        result.candidate.interNeurons, result.candidate.learningRate, result.candidate.nbEpochs,
+                        result.score, result.accuracy, result.f1, result.nbIterations, result.time / 1e9));
+                writer.newLine();
+            }
+        }
+        Files.move(temp, leaderboard, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+}
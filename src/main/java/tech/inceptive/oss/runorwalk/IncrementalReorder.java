@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * Merges new lines in a csv that is already ordered. Only the end of the ordered
+ * file, from the place of the smallest new key, is indexed and merged : when the
+ * new lines are more recent than the ordered ones, they are just added after
+ * the ordered lines. The start of the file is copied as it is by the channels.
+ *
+ * The merged file is written aside, and replaces the ordered file at the end :
+ * a failure during the merge leaves the ordered file as it was.
+ *
+ * With a header, the tail must have the columns of the ordered file, in the
+ * same order. The escaped fields of the ordered file must not have line breaks. The empty
+ * and invalid lines of the rewritten end of the ordered file are dropped.
+ *
+ * @author Andres Bel Alonso
+ */
+public class IncrementalReorder {
+
+    private static final Logger LOGGER = LogManager.getLogger(IncrementalReorder.class);
+
+    // the size of the end of the ordered file that is first searched for the merge point
+    private static final long INITIAL_WINDOW = 1024 * 1024;
+
+    private IncrementalReorder() {
+    }
+
+    /**
+     * Merges the lines of a tail file in an ordered file. If the ordered file
+     * does not exist, it is created with the sorted lines of the tail.
+     *
+     * @param orderedPath
+     *            The path to the ordered csv, it is replaced by the merged csv
+     * @param tailPath
+     *            The path to the csv with the new lines, in any order
+     * @param separator
+     *            The character used as separator in the csv files
+     * @param hasHeader
+     *            True if the files have a first header line
+     * @param escapeChar
+     *            A character that is used to ignore the separator, or null
+     * @param firstKeyCol
+     *            The index of the first column of the key
+     * @param secondKeyCol
+     *            The index of the second column of the key
+     * @param keyFunctions
+     *            Gives the functions that compute the key from the two columns,
+     *            one by indexing thread
+     * @return The number of lines written
+     */
+    public static long mergeTail(String orderedPath, String tailPath, String separator, boolean hasHeader,
+            String escapeChar, int firstKeyCol, int secondKeyCol, Supplier<CSVRowIndex.KeyFunction> keyFunctions)
+            throws IOException {
+        CSVRowIndex tail = CSVRowIndex.build(tailPath, separator, hasHeader, escapeChar, firstKeyCol, secondKeyCol,
+                keyFunctions);
+        long[] tailKeys = tail.getKeys();
+        // the new lines are often already in order, or made of a few ordered runs
+        int[] tailOrder = KeyIndexSort.sortedIndexes(tailKeys);
+        Path ordered = Paths.get(orderedPath);
+        if (!Files.exists(ordered)) {
+            tail.writeRows(tailOrder, orderedPath);
+            return tail.size();
+        }
+        if (hasHeader) {
+            // the key columns and the copied lines of the tail must mean the same
+            // in the ordered file
+            checkSameHeader(orderedPath, tailPath, separator, escapeChar);
+        }
+        if (tail.size() == 0) {
+            return 0;
+        }
+        long minKey = tailKeys[tailOrder[0]];
+        long orderedSize = Files.size(ordered);
+
+        // the window grows until it starts with a line before the smallest new key
+        CSVRowIndex suffix;
+        int firstMoved;
+        long window = INITIAL_WINDOW;
+        while (true) {
+            long from = Math.max(0, orderedSize - window);
+            suffix = CSVRowIndex.build(orderedPath, separator, hasHeader, escapeChar, firstKeyCol, secondKeyCol,
+                    keyFunctions, from);
+            firstMoved = firstAfter(suffix.getKeys(), minKey, orderedPath);
+            if (firstMoved > 0 || from == 0) {
+                break;
+            }
+            window *= 2;
+        }
+        int[] suffixOrder = IntStream.range(firstMoved, suffix.size()).toArray();
+        long mergeStart = firstMoved < suffix.size() ? suffix.getOffset(firstMoved) : orderedSize;
+        LOGGER.info("Merging {} new lines at {} of {}, {} lines moved", tail.size(), mergeStart, orderedPath,
+                suffixOrder.length);
+
+        // the unchanged start and the merged end are written aside, then they
+        // replace the ordered file
+        Path temp = Files.createTempFile(ordered.toAbsolutePath().getParent(), ordered.getFileName().toString(),
+                ".tmp");
+        try {
+            try (FileChannel source = FileChannel.open(ordered, StandardOpenOption.READ);
+                    FileChannel merged = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                long position = 0;
+                while (position < mergeStart) {
+                    position += source.transferTo(position, mergeStart - position, merged);
+                }
+                if (mergeStart == orderedSize && orderedSize > 0 && !endsWithLineBreak(source, orderedSize)) {
+                    merged.write(ByteBuffer.wrap(new byte[]{'\n'}));
+                }
+                CSVRowIndex.mergeRows(suffix, suffixOrder, tail, tailOrder, merged);
+                merged.force(false);
+            }
+            Files.move(temp, ordered, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        }
+        return suffixOrder.length + tail.size();
+    }
+
+    private static void checkSameHeader(String orderedPath, String tailPath, String separator, String escapeChar) {
+        String[] orderedHeader;
+        String[] tailHeader;
+        try (CSVReader orderedReader = new CSVReader(separator, orderedPath, true, "UTF8", escapeChar);
+                CSVReader tailReader = new CSVReader(separator, tailPath, true, "UTF8", escapeChar)) {
+            orderedHeader = orderedReader.getHeader();
+            tailHeader = tailReader.getHeader();
+        }
+        if (!Arrays.equals(orderedHeader, tailHeader)) {
+            throw new CSVReadingException("The columns of " + tailPath + " " + Arrays.toString(tailHeader)
+                    + " are not the ones of " + orderedPath + " " + Arrays.toString(orderedHeader));
+        }
+    }
+
+    /**
+     * @return The index of the first key bigger than key
+     */
+    private static int firstAfter(long[] sortedKeys, long key, String orderedPath) {
+        for (int i = 1; i < sortedKeys.length; i++) {
+            if (sortedKeys[i] < sortedKeys[i - 1]) {
+                throw new CSVReadingException("The file " + orderedPath + " is not ordered");
+            }
+        }
+        int low = 0;
+        int high = sortedKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sortedKeys[middle] <= key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static boolean endsWithLineBreak(FileChannel channel, long size) throws IOException {
+        ByteBuffer last = ByteBuffer.allocate(1);
+        channel.read(last, size - 1);
+        return last.get(0) == '\n';
+    }
+
+}
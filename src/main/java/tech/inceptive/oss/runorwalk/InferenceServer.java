@@ -0,0 +1,199 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local HTTP endpoint for the StreamingInference engine.
+ *
+ * POST /predict with a sample by line : the device id and its 6 features,
+ * separated by commas. The answer has a line by sample : the device id and the
+ * probability of each class, of each task for a multi task graph. The samples
+ * of a device are stepped in the order of the lines.
+ *
+ * @author Andres Bel Alonso
+ */
+public class InferenceServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(InferenceServer.class);
+
+    private final StreamingInference engine;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    /**
+     * Starts the server on the loopback interface
+     *
+     * @param nbThreads
+     *            The number of threads reading the requests
+     */
+    public InferenceServer(StreamingInference engine, int port, int nbThreads) throws IOException {
+        this.engine = engine;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.handlers = Executors.newFixedThreadPool(nbThreads, r -> {
+            Thread thread = new Thread(r, "inference-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.createContext("/predict", this::predict);
+        server.setExecutor(handlers);
+        server.start();
+        LOGGER.info("Inference server listening on port {}", server.getAddress().getPort());
+    }
+
+    /**
+     * @param args
+     *            The path to the model, the port (9400 by default), and the mode :
+     *            activity (by default) for a network of the RunExample, or
+     *            multitask for a graph of the MultiTaskExample
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 1 || args.length > 3) {
+            throw new IllegalArgumentException("Usage : InferenceServer modelPath [port] [activity|multitask]");
+        }
+        // parameters
+        String modelPath = args[0];
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9400;
+        String mode = args.length > 2 ? args[2] : "activity";
+        if (!"activity".equals(mode) && !"multitask".equals(mode)) {
+            throw new IllegalArgumentException("The mode must be activity or multitask : " + mode);
+        }
+        // a graph of the MultiTaskExample : the activity and the wrist in one step
+        boolean multiTask = "multitask".equals(mode);
+        int nbHttpThreads = 8;
+        // the time a sample waits for the samples of other devices
+        long latencyBudget = StreamingInference.DEFAULT_LATENCY_BUDGET;
+        int maxBatch = StreamingInference.DEFAULT_MAX_BATCH;
+        // the state of a device is dropped after this time without samples
+        long idleTimeout = StreamingInference.DEFAULT_IDLE_TIMEOUT;
+
+        StreamingInference engine = multiTask
+                ? StreamingInference.loadGraph(modelPath, latencyBudget, maxBatch, idleTimeout)
+                : StreamingInference.load(modelPath, latencyBudget, maxBatch, idleTimeout);
+        InferenceServer server = new InferenceServer(engine, port, nbHttpThreads);
+        Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+        Thread.currentThread().join();
+    }
+
+    private void predict(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "Only POST is supported\n");
+                return;
+            }
+            // the whole body is read and checked first, so a bad line does not
+            // leave the samples of the lines before it stepped in the engine
+            List<String> devices = new ArrayList<>();
+            List<float[]> samples = new ArrayList<>();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                    StandardCharsets.UTF_8))) {
+                String line;
+                int lineNumber = 0;
+                while ((line = reader.readLine()) != null) {
+                    lineNumber++;
+                    if (line.trim().isEmpty()) {
+                        continue;
+                    }
+                    String[] fields = line.split(",", -1);
+                    if (fields.length != engine.getNbFeatures() + 1 || fields[0].trim().isEmpty()) {
+                        send(exchange, 400, "The line " + lineNumber + " must have a device id and "
+                                + engine.getNbFeatures() + " features\n");
+                        return;
+                    }
+                    float[] features = new float[fields.length - 1];
+                    try {
+                        for (int i = 0; i < features.length; i++) {
+                            features[i] = Float.parseFloat(fields[i + 1].trim());
+                        }
+                    } catch (NumberFormatException ex) {
+                        send(exchange, 400, "The line " + lineNumber + " has a bad feature : " + ex.getMessage()
+                                + "\n");
+                        return;
+                    }
+                    devices.add(fields[0].trim());
+                    samples.add(features);
+                }
+            }
+            List<CompletableFuture<float[]>> results = new ArrayList<>(samples.size());
+            for (int i = 0; i < samples.size(); i++) {
+                results.add(engine.submit(devices.get(i), samples.get(i)));
+            }
+            StringBuilder answer = new StringBuilder();
+            for (int i = 0; i < results.size(); i++) {
+                float[] probabilities = results.get(i).join();
+                answer.append(devices.get(i));
+                for (float probability : probabilities) {
+                    answer.append(',').append(probability);
+                }
+                answer.append('\n');
+            }
+            send(exchange, 200, answer.toString());
+        } catch (RuntimeException ex) {
+            // a failed step, or a sample refused by the engine
+            LOGGER.warn("Failed to answer a predict request", ex);
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            String message = cause.getMessage() != null ? cause.getMessage() : cause.getClass().getName();
+            send(exchange, 500, message + "\n");
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Stops the server, then the engine
+     */
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+        try {
+            handlers.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        engine.close();
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * Reads the sensor csv with three stages that work at the same time :
+ * <ul>
+ * <li>an I/O thread reads blocks of lines ahead : the chunks of a
+ * ParallelCSVReader for a file that can be mapped,</li>
+ * <li>parser threads turn each block into a SensorBatch,</li>
+ * <li>the caller thread gives the batches, in the file order, to a
+ * consumer.</li>
+ * </ul>
+ * The blocks waiting for the consumer are in a bounded queue, so the I/O thread
+ * and the parsers wait when the consumer is the slowest stage. The throughput
+ * of each stage is logged at the end of the run.
+ *
+ * A gzip file is decompressed on another thread before the I/O stage. Its
+ * blocks are cut with the escape-aware LineBreakScanner of the
+ * ParallelCSVReader.
+ *
+ * The pipeline stops at the consumer, which is the column writer of the
+ * SensorDataCache. The sessions are not cut and the tensors are not built
+ * here : they are made from the cache, by the SessionIndex and by the session
+ * iterators, whose batches are read ahead of the training by an
+ * AsyncDataSetIterator. So the parsing overlaps the I/O, and the tensor
+ * building overlaps the training.
+ *
+ * @author Andres Bel Alonso
+ */
+public class IngestPipeline {
+
+    private static final Logger LOGGER = LogManager.getLogger(IngestPipeline.class);
+
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024 * 1024;
+
+    private static final CompletableFuture<SensorBatch> END = CompletableFuture.completedFuture(null);
+
+    private final String csvPath;
+    private final String escapeChar;
+    private final int nbParsers;
+    private final int blockSize;
+    private final int readAhead;
+
+    // stage statistics
+    private final AtomicLong parseNanos = new AtomicLong();
+    private long bytesRead;
+    private long readNanos;
+    private long readerWaitNanos;
+    private long consumeNanos;
+    private long consumerWaitNanos;
+
+    /**
+     * @param csvPath
+     *            The path to the sensor csv file
+     * @param escapeChar
+     *            A character that is used to ignore the separator, or null
+     * @param nbParsers
+     *            The number of parser threads
+     * @param blockSize
+     *            The approximated size in bytes of a block of lines
+     * @param readAhead
+     *            The maximum number of blocks read or parsed before they are
+     *            consumed
+     */
+    public IngestPipeline(String csvPath, String escapeChar, int nbParsers, int blockSize, int readAhead) {
+        if (nbParsers <= 0 || blockSize <= 0 || readAhead <= 0) {
+            throw new IllegalArgumentException("The pipeline sizes must be positive");
+        }
+        if (escapeChar != null && (escapeChar.length() != 1 || escapeChar.charAt(0) > 127)) {
+            throw new CSVReadingException("The escape char must be a single ASCII character : " + escapeChar);
+        }
+        this.csvPath = csvPath;
+        this.escapeChar = escapeChar;
+        this.nbParsers = nbParsers;
+        this.blockSize = blockSize;
+        this.readAhead = readAhead;
+    }
+
+    /**
+     * Uses a parser thread by available processor, except one for the consumer,
+     * on a csv without escape char
+     *
+     * @param csvPath
+     *            The path to the sensor csv file
+     */
+    public IngestPipeline(String csvPath) {
+        this(csvPath, null, Math.max(1, Runtime.getRuntime().availableProcessors() - 1), DEFAULT_BLOCK_SIZE,
+                2 * Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * Reads the whole file.
+     *
+     * @param consumer
+     *            Called from the caller thread with each batch, in the file order
+     * @return The number of rows read
+     */
+    public long run(Consumer<SensorBatch> consumer) throws IOException {
+        long start = System.nanoTime();
+        BlockingQueue<CompletableFuture<SensorBatch>> pending = new ArrayBlockingQueue<>(readAhead);
+        ExecutorService parsers = Executors.newFixedThreadPool(nbParsers, r -> {
+            Thread thread = new Thread(r, "ingest-parser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Thread ioThread = null;
+        long rows = 0;
+        // a compressed file can't be mapped, it is read as a stream
+        try (InputStream input = CSVReader.isGzip(csvPath) ? CSVReader.openInputStream(csvPath) : null) {
+            if (input == null) {
+                ParallelCSVReader chunks = new ParallelCSVReader(",", csvPath, true, "UTF8", escapeChar, blockSize,
+                        ForkJoinPool.commonPool());
+                ioThread = new Thread(() -> readChunks(chunks, parsers, pending), "ingest-reader");
+            } else {
+                ioThread = streamReader(input, parsers, pending);
+            }
+            ioThread.setDaemon(true);
+            ioThread.start();
+
+            while (true) {
+                long waitStart = System.nanoTime();
+                CompletableFuture<SensorBatch> next = pending.take();
+                SensorBatch batch = next.get();
+                long consumeStart = System.nanoTime();
+                consumerWaitNanos += consumeStart - waitStart;
+                if (batch == null) {
+                    break;
+                }
+                consumer.accept(batch);
+                consumeNanos += System.nanoTime() - consumeStart;
+                rows += batch.size();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CSVReadingException(ex);
+        } catch (ExecutionException ex) {
+            LOGGER.warn(ex);
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+            throw new CSVReadingException(ex.getCause());
+        } finally {
+            if (ioThread != null) {
+                ioThread.interrupt();
+            }
+            parsers.shutdownNow();
+        }
+        logStats(rows, System.nanoTime() - start);
+        return rows;
+    }
+
+    /**
+     * Reads the header line of a stream
+     *
+     * @return The I/O thread that reads the rest of the stream, not started
+     */
+    private Thread streamReader(InputStream input, ExecutorService parsers,
+            BlockingQueue<CompletableFuture<SensorBatch>> pending) throws IOException {
+        byte[] firstBlock = new byte[blockSize];
+        int firstLen = readBlock(input, firstBlock, 0);
+        if (firstLen == 0) {
+            throw new CSVReadingException("The file is empty, there is no header line");
+        }
+        int headerEnd = firstLineEnd(firstBlock, firstLen);
+        while (headerEnd < 0 && firstLen == firstBlock.length) {
+            // the header line is longer than a block
+            firstBlock = Arrays.copyOf(firstBlock, firstBlock.length * 2);
+            firstLen += readBlock(input, firstBlock, firstLen);
+            headerEnd = firstLineEnd(firstBlock, firstLen);
+        }
+        if (headerEnd < 0) {
+            headerEnd = firstLen;
+        }
+        String[] header = new CSVReader(",", new ByteArrayInputStream(firstBlock, 0, headerEnd), true, "UTF8",
+                escapeChar).getHeader();
+        byte[] firstData = Arrays.copyOfRange(firstBlock, headerEnd, Math.max(headerEnd, firstLen));
+        bytesRead = firstLen;
+        return new Thread(() -> readBlocks(input, firstData, header, parsers, pending), "ingest-reader");
+    }
+
+    /**
+     * The I/O stage of a mapped file : loads each chunk of the parallel reader
+     * in memory, and gives it to the parsers
+     */
+    private void readChunks(ParallelCSVReader chunks, ExecutorService parsers,
+            BlockingQueue<CompletableFuture<SensorBatch>> pending) {
+        try {
+            for (int i = 0; i < chunks.getNbChunks(); i++) {
+                long readStart = System.nanoTime();
+                MappedByteBuffer chunk = chunks.mapChunk(i);
+                chunk.load();
+                readNanos += System.nanoTime() - readStart;
+                bytesRead += chunk.limit();
+                long waitStart = System.nanoTime();
+                pending.put(CompletableFuture.supplyAsync(() -> parseBlock(chunk, chunks.getHeader()), parsers));
+                readerWaitNanos += System.nanoTime() - waitStart;
+            }
+            pending.put(END);
+        } catch (InterruptedException ex) {
+            // the consumer has stopped
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException ex) {
+            fail(pending, ex);
+        }
+    }
+
+    /**
+     * The I/O stage of a stream : reads blocks that end on a line break, and
+     * gives them to the parsers. The remaining bytes after the last line break
+     * of a block are moved at the start of the next block.
+     */
+    private void readBlocks(InputStream input, byte[] firstData, String[] header, ExecutorService parsers,
+            BlockingQueue<CompletableFuture<SensorBatch>> pending) {
+        try {
+            byte[] block = Arrays.copyOf(firstData, Math.max(blockSize, firstData.length));
+            int len = firstData.length;
+            boolean eof = false;
+            while (!eof) {
+                long readStart = System.nanoTime();
+                int n = len == block.length ? 0 : readBlock(input, block, len);
+                readNanos += System.nanoTime() - readStart;
+                bytesRead += n;
+                eof = len + n < block.length;
+                len += n;
+                int end = eof ? len : lastLineEnd(block, len);
+                if (end == 0) {
+                    if (eof) {
+                        break;
+                    }
+                    // a line longer than a block
+                    block = Arrays.copyOf(block, block.length * 2);
+                    continue;
+                }
+                byte[] next = new byte[Math.max(blockSize, len - end)];
+                System.arraycopy(block, end, next, 0, len - end);
+                byte[] toParse = block;
+                int toParseLen = end;
+                long waitStart = System.nanoTime();
+                pending.put(CompletableFuture.supplyAsync(() -> parseBlock(ByteBuffer.wrap(toParse, 0, toParseLen),
+                        header), parsers));
+                readerWaitNanos += System.nanoTime() - waitStart;
+                len -= end;
+                block = next;
+            }
+            pending.put(END);
+        } catch (InterruptedException ex) {
+            // the consumer has stopped
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException ex) {
+            fail(pending, ex);
+        }
+    }
+
+    /**
+     * Gives an error of the I/O stage to the consumer
+     */
+    private static void fail(BlockingQueue<CompletableFuture<SensorBatch>> pending, Exception ex) {
+        CompletableFuture<SensorBatch> failed = new CompletableFuture<>();
+        failed.completeExceptionally(ex);
+        try {
+            pending.put(failed);
+        } catch (InterruptedException iex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The parser stage : reads the lines of a block
+     */
+    private SensorBatch parseBlock(ByteBuffer block, String[] header) {
+        long start = System.nanoTime();
+        int lines = 0;
+        for (int i = block.position(); i < block.limit(); i++) {
+            if (block.get(i) == '\n') {
+                lines++;
+            }
+        }
+        SensorBatch batch = new SensorBatch(lines + 1);
+        CSVReader reader = new CSVReader(",", new ParallelCSVReader.ByteBufferInputStream(block), header, "UTF8",
+                escapeChar);
+        reader.setProjection("acceleration_x", "acceleration_y", "acceleration_z", "gyro_x", "gyro_y", "gyro_z",
+                "wrist", "activity", "date", "time");
+        int[] featureCols = new int[SensorDataCache.NB_FEATURES];
+        for (int i = 0; i < featureCols.length; i++) {
+            featureCols[i] = reader.getColumnIndex(SensorDataCache.FEATURE_COLUMNS[i]);
+        }
+        int wristCol = reader.getColumnIndex("wrist");
+        int activityCol = reader.getColumnIndex("activity");
+        int dateCol = reader.getColumnIndex("date");
+        int timeCol = reader.getColumnIndex("time");
+        float[] features = new float[SensorDataCache.NB_FEATURES];
+        TimestampParser timestampParser = new TimestampParser();
+        while (reader.readNextLine()) {
+            long timestamp = reader.getTimestamp(dateCol, timeCol, timestampParser);
+            for (int i = 0; i < features.length; i++) {
+                features[i] = (float) reader.getDouble(featureCols[i]);
+            }
+            batch.add(timestamp, features, (byte) reader.getInt(wristCol), (byte) reader.getInt(activityCol));
+        }
+        parseNanos.addAndGet(System.nanoTime() - start);
+        return batch;
+    }
+
+    private static int readBlock(InputStream input, byte[] block, int offset) throws IOException {
+        int len = offset;
+        int n;
+        while (len < block.length && (n = input.read(block, len, block.length - len)) >= 0) {
+            len += n;
+        }
+        return len - offset;
+    }
+
+    /**
+     * @param block
+     *            Bytes that start on a line start
+     * @return The position after the first line break that is not escaped, or
+     *         -1
+     */
+    private int firstLineEnd(byte[] block, int len) {
+        ByteBuffer bytes = ByteBuffer.wrap(block, 0, len);
+        return newScanner().next(bytes) ? bytes.position() : -1;
+    }
+
+    /**
+     * @param block
+     *            Bytes that start on a line start
+     * @return The position after the last line break that is not escaped, or 0
+     */
+    private int lastLineEnd(byte[] block, int len) {
+        ByteBuffer bytes = ByteBuffer.wrap(block, 0, len);
+        ParallelCSVReader.LineBreakScanner scanner = newScanner();
+        int end = 0;
+        while (scanner.next(bytes)) {
+            end = bytes.position();
+        }
+        return end;
+    }
+
+    private ParallelCSVReader.LineBreakScanner newScanner() {
+        return new ParallelCSVReader.LineBreakScanner(escapeChar == null ? -1 : escapeChar.charAt(0), false);
+    }
+
+    private void logStats(long rows, long totalNanos) {
+        LOGGER.info("Ingested {} rows of {} in {} ms", rows, csvPath, totalNanos / 1_000_000);
+        LOGGER.info("I/O stage : {} MB/s, {} ms waiting for the parsers", rate(bytesRead / (1024. * 1024), readNanos),
+                readerWaitNanos / 1_000_000);
+        LOGGER.info("Parser stage : {} rows/s with {} threads", rate(rows, parseNanos.get() / nbParsers), nbParsers);
+        LOGGER.info("Consumer stage : {} rows/s, {} ms waiting for the parsers", rate(rows, consumeNanos),
+                consumerWaitNanos / 1_000_000);
+    }
+
+    private static long rate(double amount, long nanos) {
+        return nanos == 0 ? 0 : (long) (amount * 1e9 / nanos);
+    }
+
+}
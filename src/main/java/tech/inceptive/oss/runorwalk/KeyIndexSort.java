@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+
+/**
+ * A stable parallel sort of long keys. Instead of moving objects, it gives the
+ * order of the indexes of the keys, so the keyed data stay where they are.
+ *
+ * It is a fork join merge sort on primitive arrays. Two halves that are already
+ * in order are not merged, so a nearly sorted input is sorted quickly. When the
+ * keys are made of a few ascending runs (like a sorted file with new lines
+ * appended), the runs are merged directly : a natural merge sort.
+ *
+ * @author Andres Bel Alonso
+ */
+public final class KeyIndexSort {
+
+    private static final int PARALLEL_THRESHOLD = 1 << 13;
+    private static final int INSERTION_THRESHOLD = 32;
+    // above, the keys are sorted as if they had no order
+    private static final int MAX_NATURAL_RUNS = 64;
+
+    private KeyIndexSort() {
+    }
+
+    /**
+     * @param keys
+     *            The keys, they are not modified
+     * @return The indexes of the keys, from the smallest key to the biggest one.
+     *         Equal keys keep their order.
+     */
+    public static int[] sortedIndexes(long[] keys) {
+        int n = keys.length;
+        long[] sortedKeys = keys.clone();
+        int[] indexes = new int[n];
+        for (int i = 0; i < n; i++) {
+            indexes[i] = i;
+        }
+        int[] runs = findRuns(keys);
+        if (runs == null) {
+            ForkJoinPool.commonPool().invoke(new SortTask(sortedKeys, indexes, new long[n], new int[n], 0, n));
+        } else if (runs.length > 2) {
+            mergeRuns(sortedKeys, indexes, runs);
+        }
+        return indexes;
+    }
+
+    /**
+     * @return The bounds of the ascending runs of the keys, the run i is
+     *         [runs[i], runs[i+1][, or null if there are too many runs
+     */
+    private static int[] findRuns(long[] keys) {
+        int[] runs = new int[MAX_NATURAL_RUNS + 1];
+        int nbRuns = 1;
+        for (int i = 1; i < keys.length; i++) {
+            if (keys[i] < keys[i - 1]) {
+                if (nbRuns == MAX_NATURAL_RUNS) {
+                    return null;
+                }
+                runs[nbRuns++] = i;
+            }
+        }
+        runs[nbRuns] = keys.length;
+        return Arrays.copyOf(runs, nbRuns + 1);
+    }
+
+    /**
+     * Merges the runs two by two, until there is only one run
+     */
+    private static void mergeRuns(long[] keys, int[] indexes, int[] runs) {
+        long[] keyBuffer = new long[keys.length];
+        int[] indexBuffer = new int[keys.length];
+        while (runs.length > 2) {
+            int[] bounds = runs;
+            int nbPairs = (bounds.length - 1) / 2;
+            ForkJoinPool.commonPool().submit(() -> IntStream.range(0, nbPairs).parallel()
+                    .forEach(p -> merge(keys, indexes, keyBuffer, indexBuffer, bounds[2 * p], bounds[2 * p + 1],
+                            bounds[2 * p + 2]))).join();
+            // the merged runs, and the last run if it had no pair
+            int[] merged = new int[bounds.length / 2 + 1];
+            for (int i = 0; i < merged.length - 1; i++) {
+                merged[i] = bounds[2 * i];
+            }
+            merged[merged.length - 1] = keys.length;
+            runs = merged;
+        }
+    }
+
+    private static void merge(long[] keys, int[] indexes, long[] keyBuffer, int[] indexBuffer, int start,
+            int middle, int end) {
+        if (keys[middle - 1] <= keys[middle]) {
+            // the halves are already in order
+            return;
+        }
+        System.arraycopy(keys, start, keyBuffer, start, end - start);
+        System.arraycopy(indexes, start, indexBuffer, start, end - start);
+        int left = start;
+        int right = middle;
+        for (int i = start; i < end; i++) {
+            // with equal keys, the left one is first
+            if (right >= end || (left < middle && keyBuffer[left] <= keyBuffer[right])) {
+                keys[i] = keyBuffer[left];
+                indexes[i] = indexBuffer[left++];
+            } else {
+                keys[i] = keyBuffer[right];
+                indexes[i] = indexBuffer[right++];
+            }
+        }
+    }
+
+    private static final class SortTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final long[] keys;
+        private final int[] indexes;
+        private final long[] keyBuffer;
+        private final int[] indexBuffer;
+        private final int from;
+        private final int to;
+
+        SortTask(long[] keys, int[] indexes, long[] keyBuffer, int[] indexBuffer, int from, int to) {
+            this.keys = keys;
+            this.indexes = indexes;
+            this.keyBuffer = keyBuffer;
+            this.indexBuffer = indexBuffer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= PARALLEL_THRESHOLD) {
+                sort(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new SortTask(keys, indexes, keyBuffer, indexBuffer, from, middle),
+                    new SortTask(keys, indexes, keyBuffer, indexBuffer, middle, to));
+            merge(from, middle, to);
+        }
+
+        private void sort(int start, int end) {
+            if (end - start <= INSERTION_THRESHOLD) {
+                insertionSort(start, end);
+                return;
+            }
+            int middle = (start + end) >>> 1;
+            sort(start, middle);
+            sort(middle, end);
+            merge(start, middle, end);
+        }
+
+        private void insertionSort(int start, int end) {
+            for (int i = start + 1; i < end; i++) {
+                long key = keys[i];
+                int index = indexes[i];
+                int j = i - 1;
+                while (j >= start && keys[j] > key) {
+                    keys[j + 1] = keys[j];
+                    indexes[j + 1] = indexes[j];
+                    j--;
+                }
+                keys[j + 1] = key;
+                indexes[j + 1] = index;
+            }
+        }
+
+        private void merge(int start, int middle, int end) {
+            KeyIndexSort.merge(keys, indexes, keyBuffer, indexBuffer, start, middle, end);
+        }
+    }
+
+}
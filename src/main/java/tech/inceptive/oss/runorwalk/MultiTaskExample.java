@@ -0,0 +1,240 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.deeplearning4j.api.storage.StatsStorage;
+import org.deeplearning4j.datasets.iterator.AsyncMultiDataSetIterator;
+import org.deeplearning4j.eval.Evaluation;
+import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration.GraphBuilder;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.Updater;
+import org.deeplearning4j.nn.conf.layers.GravesLSTM;
+import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.ui.api.UIServer;
+import org.deeplearning4j.ui.stats.StatsListener;
+import org.deeplearning4j.ui.storage.InMemoryStatsStorage;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.jita.conf.Configuration;
+import org.nd4j.jita.conf.CudaEnvironment;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.MultiDataSet;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
+
+/**
+ * Learns the activity and the wrist with a single network : a shared LSTM
+ * encoder with an output layer by task. The data are read once, and a single
+ * forward pass gives both predictions.
+ *
+ * @author Andres Bel Alonso
+ */
+public class MultiTaskExample {
+
+    private static final Logger LOGGER = LogManager.getLogger(MultiTaskExample.class);
+
+    // the outputs of the graph, in the order of the labels
+    public static final String[] TASKS = new String[]{"activity", "wrist"};
+
+    public static void main(String[] args) throws IOException, NoSuchFieldException, IllegalAccessException {
+        // parameters
+        int interNeurons = 16;
+        int guiPort = 9300;
+        int cpuPriority = 0;
+        int gpuPriority = 1;
+        int nbEpochs = 50;
+        // the number of time series of a mini batch
+        int batchSize = 32;
+        // the number of mini batches read ahead of the training
+        int prefetchBatches = 4;
+        double learningRate = 0.01;
+        String csvPath = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset.csv";
+        String modelPath = csvPath + ".multitask.zip";
+        // the checkpoints of the training, a training is resumed from its last one
+        String checkpointDir = csvPath + ".checkpoints";
+        // the number of epochs between two checkpoints
+        int checkpointEpochs = 5;
+        // a new time serie starts after this time in nanos without data
+        long maxGap = SessionSegmenter.DEFAULT_MAX_GAP;
+        // the maximum number of steps of a time serie, 0 for no limit
+        int maxSessionLength = 0;
+
+        // Backend options
+        RunExample.setBackendPriorities(cpuPriority, gpuPriority);
+
+        // CUDA options
+        CudaEnvironment.getInstance().getConfiguration()
+                .setMaximumDeviceCacheableLength(1024 * 1024 * 1024L)
+                .setMaximumDeviceCache(6L * 1024 * 1024 * 1024)
+                .setMaximumHostCacheableLength(1024 * 1024 * 1024L)
+                .setMaximumHostCache(6L * 1024 * 1024 * 1024L)
+                .setAllocationModel(Configuration.AllocationModel.CACHE_HOST)
+                .setMemoryModel(Configuration.MemoryModel.DELAYED);
+        CudaEnvironment.getInstance().notifyConfigurationApplied();
+
+        // ********* Building neural network ***********
+        ComputationGraphConfiguration conf = buildConfiguration(interNeurons, learningRate);
+
+        // ********** Import data ************
+        // a single cache for both tasks : the csv is parsed once
+        SensorDataCache data = SensorDataCache.open(csvPath, csvPath + ".bin");
+        SessionIndex sessions = SessionIndex.build(data, maxGap, maxSessionLength);
+        // train test separation
+        double trainRatio = 0.7;
+        List<Integer> shuffled = IntStream.range(0, sessions.size()).boxed().collect(Collectors.toList());
+        Collections.shuffle(shuffled, new Random(33));
+        int trainSize = (int) (sessions.size() * trainRatio);
+        int[] trainSessions = shuffled.subList(0, trainSize).stream().mapToInt(Integer::intValue).toArray();
+        int[] testSessions = shuffled.subList(trainSize, shuffled.size()).stream().mapToInt(Integer::intValue)
+                .toArray();
+        LOGGER.debug("Train time series set size {}", trainSessions.length);
+        LOGGER.debug("Test time series set size {}", testSessions.length);
+        // the features of a batch are read once, with the labels of both tasks
+        MultiDataSetIterator trainIterator = new AsyncMultiDataSetIterator(iterator(data, sessions, trainSessions,
+                batchSize), prefetchBatches);
+
+        // the graph is restored from the last checkpoint of the same
+        // configuration and data, if any
+        String trainingData = "multitask " + data.getFingerprint() + " gap " + maxGap
+                + " length " + maxSessionLength + " batch " + batchSize;
+        TrainingCheckpoints checkpoints = new TrainingCheckpoints(checkpointDir, conf, trainingData, 2);
+        int lastEpoch = checkpoints.getLastEpoch();
+        ComputationGraph graph;
+        if (lastEpoch >= 0) {
+            graph = checkpoints.restoreGraph(lastEpoch);
+            LOGGER.info("Resuming the training after epoch {}", lastEpoch);
+        } else {
+            graph = new ComputationGraph(conf);
+            graph.init();
+        }
+        // Here we set the port that will be used to deploy the graphical interface
+        System.setProperty("org.deeplearning4j.ui.port", Integer.toString(guiPort));
+        UIServer uiServer = UIServer.getInstance();
+        StatsStorage statsStorage = new InMemoryStatsStorage();
+        uiServer.attach(statsStorage);
+        graph.setListeners(new ScoreIterationListener(5), new StatsListener(statsStorage, 5));
+
+        for (int epoch = lastEpoch + 1; epoch < nbEpochs; epoch++) {
+            // the batches are shuffled again at each epoch
+            trainIterator.reset();
+            graph.fit(trainIterator);
+            LOGGER.debug("Epoch {} done", epoch);
+            if ((epoch + 1) % checkpointEpochs == 0 || epoch == nbEpochs - 1) {
+                checkpoints.save(graph, epoch);
+            }
+        }
+
+        LOGGER.debug("Training stats ouput");
+        logEvaluations(evaluate(graph, iterator(data, sessions, trainSessions, batchSize)));
+
+        // compute test
+        LOGGER.debug("Tests stats output");
+        logEvaluations(evaluate(graph, iterator(data, sessions, testSessions, batchSize)));
+        // the trained graph, for the InferenceServer
+        ModelSerializer.writeModel(graph, modelPath, false);
+    }
+
+    /**
+     * @return The configuration of the graph : the sensors go to a shared LSTM
+     *         layer, that goes to an output layer by task
+     */
+    public static ComputationGraphConfiguration buildConfiguration(int interNeurons, double learningRate) {
+        NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
+        // a single update by mini batch, the data are seen again at each epoch
+        builder.iterations(1);
+        builder.learningRate(learningRate);
+        builder.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT);
+        builder.seed(123);
+        builder.biasInit(0);
+        builder.miniBatch(true);
+        builder.updater(Updater.RMSPROP);
+        builder.weightInit(WeightInit.XAVIER);
+        GraphBuilder graphBuilder = builder.graphBuilder();
+        graphBuilder.addInputs("sensors");
+        GravesLSTM.Builder encoderBuilder = new GravesLSTM.Builder();
+        // 3 variables for the gyroscope, 3 for the accelerometer
+        encoderBuilder.nIn(SensorDataCache.NB_FEATURES);
+        encoderBuilder.nOut(interNeurons);
+        encoderBuilder.activation(Activation.SIGMOID);
+        graphBuilder.addLayer("encoder", encoderBuilder.build(), "sensors");
+        for (String task : TASKS) {
+            // the losses of the tasks are added
+            RnnOutputLayer.Builder outputLayerBuilder = new RnnOutputLayer.Builder(LossFunction.MCXENT);
+            outputLayerBuilder.activation(Activation.SOFTMAX);
+            outputLayerBuilder.nIn(interNeurons);
+            outputLayerBuilder.nOut(2);
+            graphBuilder.addLayer(task, outputLayerBuilder.build(), "encoder");
+        }
+        graphBuilder.setOutputs(TASKS);
+        graphBuilder.pretrain(false);
+        graphBuilder.backprop(true);
+        return graphBuilder.build();
+    }
+
+    private static MultiDataSetIterator iterator(SensorDataCache data, SessionIndex sessions, int[] subset,
+            int batchSize) {
+        return new MultiTaskSessionIterator(data, sessions, subset, batchSize,
+                new CachedSessionIterator.RowClass[]{SensorDataCache::getActivity, SensorDataCache::getWrist},
+                new int[]{2, 2}, 123);
+    }
+
+    /**
+     * Evaluates each output of the graph on masked mini batches
+     *
+     * @return An evaluation by task, in the TASKS order
+     */
+    public static Evaluation[] evaluate(ComputationGraph graph, MultiDataSetIterator dataset) {
+        if (dataset.resetSupported()) {
+            dataset.reset();
+        }
+        Evaluation[] evals = new Evaluation[TASKS.length];
+        for (int t = 0; t < evals.length; t++) {
+            evals[t] = new Evaluation(2);
+        }
+        while (dataset.hasNext()) {
+            MultiDataSet batch = dataset.next();
+            graph.setLayerMaskArrays(batch.getFeaturesMaskArrays(), batch.getLabelsMaskArrays());
+            INDArray[] outs = graph.output(false, batch.getFeatures());
+            graph.clearLayerMaskArrays();
+            for (int t = 0; t < evals.length; t++) {
+                evals[t].evalTimeSeries(batch.getLabels(t), outs[t], batch.getLabelsMaskArray(t));
+            }
+        }
+        return evals;
+    }
+
+    private static void logEvaluations(Evaluation[] evals) {
+        for (int t = 0; t < evals.length; t++) {
+            LOGGER.debug("Task {}", TASKS[t]);
+            LOGGER.debug(evals[t].stats());
+        }
+    }
+
+}
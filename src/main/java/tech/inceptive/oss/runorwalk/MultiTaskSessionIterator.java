@@ -0,0 +1,112 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.MultiDataSet;
+import org.nd4j.linalg.dataset.api.MultiDataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.MultiDataSetIterator;
+
+/**
+ * Gives mini batches of sessions read from the binary cache, with the labels
+ * of several tasks : the features are read once, and there is a label array by
+ * task. The batches are made as by the BucketedSessionIterator.
+ *
+ * @author Andres Bel Alonso
+ */
+public class MultiTaskSessionIterator extends BucketedSessionIterator<MultiDataSet>
+        implements MultiDataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SensorDataCache data;
+    private final CachedSessionIterator.RowClass[] tasks;
+    private final int[] nbClasses;
+    private MultiDataSetPreProcessor preProcessor;
+
+    /**
+     * @param data
+     *            The binary cache
+     * @param index
+     *            The sessions of the cache
+     * @param sessions
+     *            The indexes of the sessions given by this iterator
+     * @param batchSize
+     *            The number of sessions of a batch
+     * @param tasks
+     *            Gives the label of each row, for each task
+     * @param nbClasses
+     *            The number of classes of each task
+     * @param seed
+     *            The seed of the shuffle
+     */
+    public MultiTaskSessionIterator(SensorDataCache data, SessionIndex index, int[] sessions, int batchSize,
+            CachedSessionIterator.RowClass[] tasks, int[] nbClasses, long seed) {
+        super(index, sessions, batchSize, DEFAULT_BUCKET_BATCHES, seed);
+        if (tasks.length == 0 || tasks.length != nbClasses.length) {
+            throw new IllegalArgumentException("There must be a number of classes by task, and at least one task");
+        }
+        this.data = data;
+        this.tasks = tasks.clone();
+        this.nbClasses = nbClasses.clone();
+    }
+
+    /**
+     * Reads the sessions : the features [minibatch, features, time], and the
+     * labels [minibatch, classes, time] of each task
+     */
+    @Override
+    protected MultiDataSet readRanges(int[] starts, int[] lengths) {
+        int length = CachedSessionIterator.checkBatchSize(lengths, Arrays.stream(nbClasses).max().getAsInt());
+        INDArray mask = CachedSessionIterator.readMask(lengths, length);
+        INDArray[] labels = new INDArray[tasks.length];
+        INDArray[] labelsMasks = new INDArray[tasks.length];
+        for (int t = 0; t < tasks.length; t++) {
+            labels[t] = CachedSessionIterator.readLabels(data, starts, lengths, length, tasks[t], nbClasses[t]);
+            labelsMasks[t] = mask;
+        }
+        MultiDataSet res = new MultiDataSet(
+                new INDArray[]{CachedSessionIterator.readFeatures(data, starts, lengths, length)}, labels,
+                new INDArray[]{mask}, labelsMasks);
+        if (preProcessor != null) {
+            preProcessor.preProcess(res);
+        }
+        return res;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public void setPreProcessor(MultiDataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public MultiDataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+}
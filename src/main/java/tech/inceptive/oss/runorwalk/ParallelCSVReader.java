@@ -0,0 +1,473 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * Reads a csv file with several threads. The file is memory mapped and cut in
+ * chunks that end on a line break (a line break between two escape chars is
+ * not used to cut). Each chunk is read by a CSVReader on a fork join pool.
+ *
+ * Only the UTF8 and ASCII encodings are supported, with a separator and an
+ * escape char that are ASCII characters.
+ *
+ * @author Andres Bel Alonso
+ */
+public class ParallelCSVReader {
+
+    /**
+     * Reads the lines of a chunk
+     *
+     * @param <T>
+     *            the result of the reading of a chunk
+     */
+    @FunctionalInterface
+    public interface ChunkParser<T> {
+
+        /**
+         * @param chunkReader
+         *            A reader on the chunk lines. It already knows the header of
+         *            the file, if any
+         * @return The result of the chunk
+         */
+        T parse(CSVReader chunkReader);
+    }
+
+    private static final Logger LOGGER = LogManager.getLogger(ParallelCSVReader.class);
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private final String separator;
+    private final String filePath;
+    private final String encoding;
+    private final String escapeChar;
+    private final int escapeByte;
+    private final ForkJoinPool pool;
+    private final String[] header;
+    // the bounds of the chunks, the chunk i is [chunkBounds[i], chunkBounds[i+1][
+    private final long[] chunkBounds;
+    private String[] projection;
+
+    /**
+     * @param separator
+     *            The character used as separator in the csv file
+     * @param filePath
+     *            The absolute path to the csv file that is going to be read.
+     * @param hasHeader
+     *            True if the file has a first header line.
+     * @param encoding
+     *            The encoding of the file, UTF8 or ASCII
+     * @param escapeChar
+     *            A character that is used to ignore the separator, or null
+     * @param chunkSize
+     *            The approximated size in bytes of the chunks read by a thread
+     * @param pool
+     *            The pool that reads the chunks
+     */
+    public ParallelCSVReader(String separator, String filePath, boolean hasHeader, String encoding, String escapeChar,
+            int chunkSize, ForkJoinPool pool) {
+        Charset charset = Charset.forName(encoding);
+        if (!StandardCharsets.UTF_8.equals(charset) && !StandardCharsets.US_ASCII.equals(charset)) {
+            throw new CSVReadingException("The parallel reading only supports UTF8 and ASCII files : " + encoding);
+        }
+        if (separator == null || separator.length() != 1 || separator.charAt(0) > 127) {
+            throw new CSVReadingException("The separator must be a single ASCII character : " + separator);
+        }
+        if (escapeChar != null && (escapeChar.length() != 1 || escapeChar.charAt(0) > 127)) {
+            throw new CSVReadingException("The escape char must be a single ASCII character : " + escapeChar);
+        }
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive : " + chunkSize);
+        }
+        this.separator = separator;
+        this.filePath = filePath;
+        this.encoding = encoding;
+        this.escapeChar = escapeChar;
+        this.escapeByte = escapeChar == null ? -1 : escapeChar.charAt(0);
+        this.pool = pool;
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long dataStart = 0;
+            if (hasHeader) {
+                dataStart = findLineEnd(channel, 0, false, size, escapeByte);
+                try (CSVReader headerReader = new CSVReader(separator, new ByteBufferInputStream(
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, dataStart)), true, encoding, escapeChar)) {
+                    header = headerReader.getHeader();
+                }
+            } else {
+                header = null;
+            }
+            chunkBounds = computeChunkBounds(channel, dataStart, size, chunkSize, escapeByte, pool);
+            LOGGER.debug("{} split in {} chunks", filePath, chunkBounds.length - 1);
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    /**
+     * Reads an UTF8 file, without escape char, on the common fork join pool
+     *
+     * @param separator
+     *            The character used as separator in the csv file
+     * @param filePath
+     *            The absolute path to the csv file that is going to be read.
+     * @param hasHeader
+     *            True if the file has a first header line.
+     */
+    public ParallelCSVReader(String separator, String filePath, boolean hasHeader) {
+        this(separator, filePath, hasHeader, "UTF8", null, DEFAULT_CHUNK_SIZE, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @return The columns names, or null if the file has no header
+     */
+    public String[] getHeader() {
+        return header;
+    }
+
+    /**
+     * Restricts the reading of the chunks to some columns.
+     *
+     * @see CSVReader#setProjection(java.lang.String...)
+     * @param columnNames
+     *            The names of the columns to read. With no name, all the columns
+     *            are read
+     */
+    public void setProjection(String... columnNames) {
+        this.projection = columnNames;
+    }
+
+    public int getNbChunks() {
+        return chunkBounds.length - 1;
+    }
+
+    /**
+     * Reads all the chunks in parallel.
+     *
+     * @param parser
+     *            Called once by chunk, from the pool threads
+     * @return The result of each chunk, in the file order
+     */
+    public <T> List<T> parseChunks(ChunkParser<T> parser) {
+        List<ForkJoinTask<T>> tasks = new ArrayList<>();
+        for (int i = 0; i < getNbChunks(); i++) {
+            tasks.add(submitChunk(i, parser));
+        }
+        List<T> res = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<T> task : tasks) {
+            res.add(join(task, tasks));
+        }
+        return res;
+    }
+
+    /**
+     * Reads all the lines of the file.
+     *
+     * @param ordered
+     *            If true, the lines are in the file order. Otherwise, the lines of
+     *            a chunk are together, but the chunks are in any order
+     * @return All the separated lines
+     */
+    public List<String[]> readAll(boolean ordered) {
+        List<String[]> res = new ArrayList<>();
+        forEachRow(row -> res.add(row), ordered);
+        return res;
+    }
+
+    /**
+     * Reads all the lines of the file, and gives them to an action.
+     *
+     * @param action
+     *            Called on each separated line
+     * @param ordered
+     *            If true, the action is called from the caller thread, in the file
+     *            order. Otherwise, it is called from the pool threads as soon as
+     *            the lines are read, so it must be thread safe.
+     */
+    public void forEachRow(Consumer<String[]> action, boolean ordered) {
+        if (!ordered) {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for (int i = 0; i < getNbChunks(); i++) {
+                int chunk = i;
+                tasks.add(pool.submit(ForkJoinTask.adapt(() -> {
+                    readChunk(chunk, ParallelCSVReader::readRows).forEach(action);
+                    return null;
+                })));
+            }
+            for (ForkJoinTask<Void> task : tasks) {
+                join(task, tasks);
+            }
+            return;
+        }
+        // only a window of chunks is read ahead, to bound the memory
+        int window = Math.max(2, pool.getParallelism() * 2);
+        Deque<ForkJoinTask<List<String[]>>> pending = new ArrayDeque<>();
+        int next = 0;
+        while (next < getNbChunks() || !pending.isEmpty()) {
+            while (next < getNbChunks() && pending.size() < window) {
+                pending.addLast(submitChunk(next, ParallelCSVReader::readRows));
+                next++;
+            }
+            join(pending.removeFirst(), pending).forEach(action);
+        }
+    }
+
+    /**
+     * Waits for the result of a chunk. If the chunk has failed, the other tasks
+     * are cancelled before the failure is thrown.
+     */
+    private static <T> T join(ForkJoinTask<T> task, Collection<? extends ForkJoinTask<?>> others) {
+        try {
+            return task.join();
+        } catch (RuntimeException | Error ex) {
+            for (ForkJoinTask<?> other : others) {
+                other.cancel(false);
+            }
+            throw ex;
+        }
+    }
+
+    private static List<String[]> readRows(CSVReader chunkReader) {
+        List<String[]> rows = new ArrayList<>();
+        while (chunkReader.readNextLine()) {
+            rows.add(chunkReader.getSeparetedCurLine());
+        }
+        return rows;
+    }
+
+    private <T> ForkJoinTask<T> submitChunk(int chunk, ChunkParser<T> parser) {
+        return pool.submit(ForkJoinTask.adapt(() -> readChunk(chunk, parser)));
+    }
+
+    /**
+     * Parses a chunk. The line numbers of the chunk reader start at the chunk,
+     * so a failure gives the chunk and its position in the file.
+     */
+    private <T> T readChunk(int chunk, ChunkParser<T> parser) {
+        MappedByteBuffer buffer = mapChunk(chunk);
+        CSVReader chunkReader;
+        if (header == null) {
+            chunkReader = new CSVReader(separator, new ByteBufferInputStream(buffer), false, encoding, escapeChar);
+        } else {
+            chunkReader = new CSVReader(separator, new ByteBufferInputStream(buffer), header, encoding, escapeChar);
+        }
+        try (CSVReader reader = chunkReader) {
+            reader.setProjection(projection);
+            return parser.parse(reader);
+        } catch (RuntimeException ex) {
+            throw new CSVReadingException("Failed to read the chunk " + chunk + " starting at the byte "
+                    + chunkBounds[chunk] + " of " + filePath + " : " + ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Maps a chunk, for a caller that reads its bytes itself
+     *
+     * @return The bytes of the chunk, from a line start to the start of the
+     *         next chunk
+     */
+    MappedByteBuffer mapChunk(int chunk) {
+        long start = chunkBounds[chunk];
+        long length = chunkBounds[chunk + 1] - start;
+        if (length > Integer.MAX_VALUE) {
+            throw new CSVReadingException("The chunk starting at " + start + " is too big to be mapped");
+        }
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    /**
+     * Cuts the data in blocks of chunkSize bytes, and moves the start of each
+     * block to the next line start. To know if a line break is escaped, the
+     * escape chars of each block are counted in parallel first.
+     *
+     * @param dataStart
+     *            The start of the first chunk, it must be a line start
+     * @param escapeByte
+     *            The escape char, or -1
+     * @return The bounds of the chunks, the chunk i is [bounds[i],
+     *         bounds[i+1][
+     */
+    static long[] computeChunkBounds(FileChannel channel, long dataStart, long size, int chunkSize,
+            int escapeByte, ForkJoinPool pool) {
+        int nbBlocks = (int) Math.max(1, (size - dataStart + chunkSize - 1) / chunkSize);
+        boolean[] escapedAtStart = new boolean[nbBlocks];
+        if (escapeByte >= 0) {
+            boolean[] oddEscapes = new boolean[nbBlocks];
+            pool.submit(() -> IntStream.range(0, nbBlocks).parallel().forEach(i -> {
+                oddEscapes[i] = countEscapes(channel, dataStart + (long) i * chunkSize,
+                        Math.min(size, dataStart + (long) (i + 1) * chunkSize), escapeByte) % 2 == 1;
+            })).join();
+            for (int i = 1; i < nbBlocks; i++) {
+                escapedAtStart[i] = escapedAtStart[i - 1] ^ oddEscapes[i - 1];
+            }
+        }
+        long[] starts = new long[nbBlocks + 1];
+        starts[0] = dataStart;
+        starts[nbBlocks] = size;
+        pool.submit(() -> IntStream.range(1, nbBlocks).parallel().forEach(i -> {
+            starts[i] = findLineEnd(channel, dataStart + (long) i * chunkSize, escapedAtStart[i], size,
+                    escapeByte);
+        })).join();
+        // a line longer than a block gives empty chunks, they are removed
+        return IntStream.range(0, nbBlocks + 1)
+                .filter(i -> i == 0 || starts[i] > starts[i - 1])
+                .mapToLong(i -> starts[i])
+                .toArray();
+    }
+
+    private static int countEscapes(FileChannel channel, long from, long to, int escapeByte) {
+        int count = 0;
+        for (long offset = from; offset < to; offset += Integer.MAX_VALUE) {
+            ByteBuffer buffer = map(channel, offset, Math.min(to - offset, Integer.MAX_VALUE));
+            while (buffer.hasRemaining()) {
+                if (buffer.get() == escapeByte) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return The offset just after the first line break that follows from, and
+     *         is not escaped, or size if there is no such line break
+     */
+    private static long findLineEnd(FileChannel channel, long from, boolean escaped, long size,
+            int escapeByte) {
+        LineBreakScanner scanner = new LineBreakScanner(escapeByte, escaped);
+        for (long offset = from; offset < size; offset += Integer.MAX_VALUE) {
+            ByteBuffer buffer = map(channel, offset, Math.min(size - offset, Integer.MAX_VALUE));
+            if (scanner.next(buffer)) {
+                return offset + buffer.position();
+            }
+        }
+        return size;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, long offset, long length) {
+        try {
+            return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    /**
+     * Finds the line breaks that are not escaped. The escape state is kept
+     * between two calls, so the bytes can be given by parts : the mapped
+     * segments of a file, or the blocks of a stream that can't be mapped.
+     */
+    static class LineBreakScanner {
+
+        private final int escapeByte;
+        private boolean escaped;
+
+        /**
+         * @param escapeByte
+         *            The escape char, or -1
+         * @param escaped
+         *            True if the first byte is between two escape chars
+         */
+        LineBreakScanner(int escapeByte, boolean escaped) {
+            this.escapeByte = escapeByte;
+            this.escaped = escaped;
+        }
+
+        /**
+         * Moves the position of the buffer after the next line break that is not
+         * escaped, or to its limit
+         *
+         * @return true if a line break has been found
+         */
+        boolean next(ByteBuffer buffer) {
+            while (buffer.hasRemaining()) {
+                byte b = buffer.get();
+                if (b == escapeByte) {
+                    escaped = !escaped;
+                } else if (b == '\n' && !escaped) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An InputStream on the remaining bytes of a ByteBuffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+}
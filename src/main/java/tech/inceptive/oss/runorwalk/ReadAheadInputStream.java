@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An InputStream that reads its source on another thread. The source is read
+ * ahead in large buffers, so a slow source (like a decompression) works while
+ * the reader of this stream works on the previous buffers.
+ *
+ * @author Andres Bel Alonso
+ */
+class ReadAheadInputStream extends InputStream {
+
+    private static final class Chunk {
+
+        private final byte[] data;
+        private final int length;
+        private final IOException error;
+
+        Chunk(byte[] data, int length, IOException error) {
+            this.data = data;
+            this.length = length;
+            this.error = error;
+        }
+    }
+
+    private final InputStream source;
+    private final BlockingQueue<Chunk> filled;
+    // the buffers already read, reused by the reading thread
+    private final BlockingQueue<byte[]> free;
+    private final Thread readingThread;
+
+    private Chunk current;
+    private int position;
+    private boolean eof = false;
+
+    /**
+     * @param source
+     *            The stream read by the other thread. It is closed with this
+     *            stream
+     * @param bufferSize
+     *            The size of a buffer
+     * @param nbBuffers
+     *            The number of buffers read ahead
+     */
+    ReadAheadInputStream(InputStream source, int bufferSize, int nbBuffers) {
+        this.source = source;
+        this.filled = new ArrayBlockingQueue<>(nbBuffers + 1);
+        this.free = new ArrayBlockingQueue<>(nbBuffers + 1);
+        for (int i = 0; i < nbBuffers + 1; i++) {
+            free.add(new byte[bufferSize]);
+        }
+        readingThread = new Thread(this::readSource, "read-ahead");
+        readingThread.setDaemon(true);
+        readingThread.start();
+    }
+
+    private void readSource() {
+        try {
+            while (true) {
+                byte[] buffer = free.take();
+                int len = 0;
+                int n = 0;
+                while (len < buffer.length && (n = source.read(buffer, len, buffer.length - len)) >= 0) {
+                    len += n;
+                }
+                if (len > 0) {
+                    filled.put(new Chunk(buffer, len, null));
+                }
+                if (n < 0) {
+                    filled.put(new Chunk(null, -1, null));
+                    return;
+                }
+            }
+        } catch (InterruptedException ex) {
+            // the stream is closed
+        } catch (IOException ex) {
+            try {
+                filled.put(new Chunk(null, -1, ex));
+            } catch (InterruptedException iex) {
+                // the stream is closed
+            }
+        }
+    }
+
+    /**
+     * @return false at the end of the source
+     */
+    private boolean nextChunk() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (current != null) {
+            free.add(current.data);
+            current = null;
+        }
+        try {
+            Chunk chunk = filled.take();
+            if (chunk.error != null) {
+                eof = true;
+                throw chunk.error;
+            }
+            if (chunk.length < 0) {
+                eof = true;
+                return false;
+            }
+            current = chunk;
+            position = 0;
+            return true;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if ((current == null || position == current.length) && !nextChunk()) {
+            return -1;
+        }
+        return current.data[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if ((current == null || position == current.length) && !nextChunk()) {
+            return -1;
+        }
+        int n = Math.min(len, current.length - position);
+        System.arraycopy(current.data, position, b, off, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        readingThread.interrupt();
+        source.close();
+    }
+
+}
@@ -17,13 +17,8 @@ package tech.inceptive.oss.runorwalk;
 
 
 import java.io.File;
-import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.time.LocalDate;
-import java.time.LocalTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  *
@@ -31,75 +26,62 @@ import java.util.List;
  */
 public class ReorderDataset {
 
-    public static class LineData implements Comparable<LineData> {
-
-        private final String[] data;
-        private final LocalDate date;
-        private final LocalTime time;
-
-        public LineData(String[] data, LocalDate date, LocalTime time) {
-            this.data = data;
-            this.date = date;
-            this.time = time;
-        }
-
-        @Override
-        public int compareTo(LineData o) {
-            if(this.date.isEqual(o.date)) {
-                return Long.compare(this.time.toNanoOfDay(), o.time.toNanoOfDay());
-            } else {
-                return this.date.compareTo(o.date);
-            }
-        }
-
-        public String[] getData() {
-            return data;
-        }
-
-    }
-
     /**
      * @param args the command line arguments
      */
-    public static void main(String[] args) throws FileNotFoundException {
+    public static void main(String[] args) throws IOException {
         String csvPath = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset.csv";
         String separator = ",";
         boolean hasHeader = true;
         String escapeChar = "\"";
         String destCSV = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset_order.csv";
+        // the external sort keeps the memory bounded, for the files bigger than the heap
+        boolean externalSort = false;
+        long memoryBudget = 256L * 1024 * 1024;
+        // the new lines of the dataset. When it is set, they are merged in the
+        // already ordered destCSV, instead of ordering csvPath
+        String tailCSV = null;
+        if (tailCSV != null) {
+            CSVReader tailReader = new CSVReader(separator, tailCSV, hasHeader, "UTF8", escapeChar);
+            int dateCol = tailReader.getColumnIndex("date");
+            int timeCol = tailReader.getColumnIndex("time");
+            tailReader.close();
+            IncrementalReorder.mergeTail(destCSV, tailCSV, separator, hasHeader, escapeChar, dateCol, timeCol,
+                    () -> new TimestampParser()::parse);
+            return;
+        }
         CSVReader reader = new CSVReader(separator, csvPath, hasHeader, "UTF8", escapeChar);
-        List<LineData> lineData = new ArrayList<>();
-        DateTimeFormatter dateFormatter = DateTimeFormatter.ofPattern("y-M-d");
-        DateTimeFormatter timeFormatter = DateTimeFormatter.ofPattern("H:m:s:n");
-        //Read the csv
-        while (CSVReader.secureReadNextLine(reader)) {
-            lineData.add(new LineData(reader.getSeparetedCurLine(),
-                    LocalDate.parse(reader.getColName("date"), dateFormatter),
-                    LocalTime.parse(reader.getColName("time"), timeFormatter)));
+        int dateCol = reader.getColumnIndex("date");
+        int timeCol = reader.getColumnIndex("time");
+        if (externalSort) {
+            try (ExternalLineSorter sorter = new ExternalLineSorter(memoryBudget, null);
+                    PrintWriter pw = new PrintWriter(new File(destCSV))) {
+                TimestampParser timestampParser = new TimestampParser();
+                while (CSVReader.secureReadNextLine(reader)) {
+                    sorter.add(reader.getTimestamp(dateCol, timeCol, timestampParser),
+                            joinLine(reader.getSeparetedCurLine(), separator));
+                }
+                pw.println(joinLine(reader.getHeader(), separator));
+                sorter.writeSorted(pw);
+            }
+            return;
         }
-        //write the csv
-        PrintWriter pw = new PrintWriter(new File(destCSV));
-        String[] header = reader.getHeader();
-        StringBuilder headerSB = new StringBuilder();
-        headerSB.append(header[0]);
-        for (int i = 1; i < header.length; i++) {
-            headerSB.append(separator);
-            headerSB.append(header[i]);
+        reader.close();
+        // the lines are not parsed, their bytes are copied in the sorted order
+        CSVRowIndex index = CSVRowIndex.build(csvPath, separator, hasHeader, escapeChar, dateCol, timeCol,
+                () -> new TimestampParser()::parse);
+        int[] order = KeyIndexSort.sortedIndexes(index.getKeys());
+        index.writeRows(order, destCSV);
+    }
+
+    private static String joinLine(String[] data, String separator) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(data[0]);
+        for (int i = 1; i < data.length; i++) {
+            sb.append(separator);
+            sb.append(data[i]);
         }
-        pw.println(headerSB.toString());
-        lineData.stream().
-                sorted().
-                map(LineData::getData).
-                forEach(d -> {
-                    StringBuilder sb = new StringBuilder();
-                    sb.append(d[0]);
-                    for(int i=1; i<d.length; i++) {
-                        sb.append(separator);
-                        sb.append(d[i]);
-                    }
-                    pw.println(sb.toString());
-                });
-        pw.close();
+        return sb.toString();
     }
 
 }
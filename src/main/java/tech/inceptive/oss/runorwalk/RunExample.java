@@ -17,17 +17,26 @@ package tech.inceptive.oss.runorwalk;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.time.LocalDate;
-import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.deeplearning4j.api.storage.StatsStorage;
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
+import org.deeplearning4j.datasets.iterator.ExistingDataSetIterator;
 import org.deeplearning4j.eval.Evaluation;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
+import org.deeplearning4j.nn.conf.BackpropType;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration.ListBuilder;
@@ -37,15 +46,17 @@ import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.deeplearning4j.ui.api.UIServer;
 import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.ui.storage.InMemoryStatsStorage;
+import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.jita.conf.Configuration;
 import org.nd4j.jita.conf.CudaEnvironment;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.lossfunctions.LossFunctions.LossFunction;
 
 /**
@@ -66,12 +77,226 @@ public class RunExample {
         int guiPort = 9300;
         int cpuPriority = 0;
         int gpuPriority = 1;
-        int nbIterations = 1500;
+        int nbEpochs = 50;
+        // the number of time series of a mini batch
+        int batchSize = 32;
+        // the number of mini batches read ahead of the training
+        int prefetchBatches = 4;
         double learningRate = 0.01;
         String csvPath = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset.csv";
+        String modelPath = csvPath + ".activity.zip";
+        // the checkpoints of the training, a training is resumed from its last one
+        String checkpointDir = csvPath + ".checkpoints";
+        // the number of epochs between two checkpoints
+        int checkpointEpochs = 5;
+        // the number of mini batches between two scores of the test set
+        int evaluationIterations = 50;
+        // the training stops after this number of scores without improvement
+        int patience = 5;
+        // the maximum training time in minutes, 0 for no limit
+        long maxTrainingMinutes = 0;
+        // a new time serie starts after this time in nanos without data
+        long maxGap = SessionSegmenter.DEFAULT_MAX_GAP;
+        // the maximum number of steps of a time serie, 0 for no limit
+        int maxSessionLength = 0;
+        // the number of model replicas trained in parallel on the cpu cores, 0 to
+        // train a single model
+        int nbWorkers = 0;
+        // the number of mini batches fitted by each replica before they are averaged
+        int averagingFrequency = 3;
+        // train on windows of this number of steps, 0 to train on whole sessions
+        int windowLength = 0;
+        // the number of steps between the starts of two windows
+        int windowStride = 50;
+        // the number of steps of a truncated back propagation forward pass, 0 for
+        // a full back propagation
+        int tbpttForwardLength = 0;
+        // the number of steps the gradient is propagated back at each truncated
+        // pass, at most the forward length
+        int tbpttBackwardLength = 0;
 
 
+        if (nbWorkers > 0) {
+            // the replicas are trained on the cpu backend
+            cpuPriority = gpuPriority + 1;
+            if (evaluationIterations % (nbWorkers * averagingFrequency) != 0) {
+                // the scores fall at the end of whole groups of batches, until a
+                // partial group is flushed at the end of an epoch
+                throw new IllegalArgumentException("The evaluation iterations " + evaluationIterations
+                        + " must be a multiple of the workers times the averaging frequency "
+                        + nbWorkers * averagingFrequency);
+            }
+        }
+
         // Backend options
+        setBackendPriorities(cpuPriority, gpuPriority);
+        
+        if (nbWorkers == 0) {
+            // CUDA options
+            CudaEnvironment.getInstance().getConfiguration()
+                    .setMaximumDeviceCacheableLength(1024 * 1024 * 1024L)
+                    .setMaximumDeviceCache(6L * 1024 * 1024 * 1024)
+                    .setMaximumHostCacheableLength(1024 * 1024 * 1024L)
+                    .setMaximumHostCache(6L * 1024 * 1024 * 1024L)
+                    .setAllocationModel(Configuration.AllocationModel.CACHE_HOST)
+                    .setMemoryModel(Configuration.MemoryModel.DELAYED);
+            CudaEnvironment.getInstance().notifyConfigurationApplied();
+        }
+
+        // ********* Building neural network ***********
+        MultiLayerConfiguration conf = buildConfiguration(interNeurons, learningRate, tbpttForwardLength,
+                tbpttBackwardLength);
+
+        // ********** Import data ************
+        // the csv is only parsed when its binary cache is missing or outdated
+        SensorDataCache data = SensorDataCache.open(csvPath, csvPath + ".bin");
+        // the sessions stay in the cache, only their position is kept
+        SessionIndex sessions = SessionIndex.build(data, maxGap, maxSessionLength);
+        // train test separation
+        double trainRatio = 0.7;
+        List<Integer> shuffled = IntStream.range(0, sessions.size()).boxed().collect(Collectors.toList());
+        Collections.shuffle(shuffled, new Random(33));
+        int trainSize = (int) (sessions.size() * trainRatio);
+        int[] trainSessions = shuffled.subList(0, trainSize).stream().mapToInt(Integer::intValue).toArray();
+        int[] testSessions = shuffled.subList(trainSize, shuffled.size()).stream().mapToInt(Integer::intValue)
+                .toArray();
+        LOGGER.debug("Train time series set size {}", trainSessions.length);
+        LOGGER.debug("Test time series set siwe {}", testSessions.length);
+        // the mini batches are made of series of similar lengths, and only padded
+        // to their longest serie, or of windows of the series.
+        // The next batches are read by a prefetch thread
+        DataSetIterator trainBatches;
+        if (windowLength > 0) {
+            trainBatches = new WindowedSessionIterator(data, sessions, trainSessions, windowLength, windowStride,
+                    batchSize, SensorDataCache::getActivity, 2, 123);
+        } else {
+            trainBatches = new CachedSessionIterator(data, sessions, trainSessions, batchSize,
+                    SensorDataCache::getActivity, 2, 123);
+        }
+        DataSetIterator trainIterator = new AsyncDataSetIterator(trainBatches, prefetchBatches);
+        // the network is restored from the last checkpoint of the same
+        // configuration and data, if any
+        String trainingData = "activity " + data.getFingerprint() + " gap " + maxGap
+                + " length " + maxSessionLength + " batch " + batchSize + " window " + windowLength + "/"
+                + windowStride;
+        TrainingCheckpoints checkpoints = new TrainingCheckpoints(checkpointDir, conf, trainingData, 2);
+        int lastEpoch = checkpoints.getLastEpoch();
+        MultiLayerNetwork net;
+        if (lastEpoch >= 0) {
+            net = checkpoints.restore(lastEpoch);
+            LOGGER.info("Resuming the training after epoch {}", lastEpoch);
+        } else {
+            net = new MultiLayerNetwork(conf);
+            net.init();
+        }
+        // Here we set the port that will be used to deploy the graphical interface
+        System.setProperty("org.deeplearning4j.ui.port", Integer.toString(guiPort));
+        UIServer uiServer = UIServer.getInstance();
+        StatsStorage statsStorage = new InMemoryStatsStorage();
+        uiServer.attach(statsStorage);
+        net.setListeners(new ScoreIterationListener(5), new StatsListener(statsStorage, 5));
+
+        // the test set is scored during the training, the best network is kept
+        EarlyStoppingDriver driver = new EarlyStoppingDriver(evaluationIterations, patience,
+                TimeUnit.MINUTES.toNanos(maxTrainingMinutes));
+        EarlyStoppingDriver.Trainer trainer = net::fit;
+        ParallelWrapper wrapper = null;
+        if (nbWorkers > 0) {
+            // each worker fits its own batches, the replicas are averaged in net
+            wrapper = new ParallelWrapper.Builder<>(net)
+                    .workers(nbWorkers)
+                    .averagingFrequency(averagingFrequency)
+                    .prefetchBuffer(prefetchBatches)
+                    .reportScoreAfterAveraging(true)
+                    .build();
+            trainer = new ParallelTrainer(wrapper, nbWorkers * averagingFrequency);
+        }
+        try {
+            if (lastEpoch < nbEpochs - 1) {
+                DataSetIterator holdOut = new CachedSessionIterator(data, sessions, testSessions, batchSize,
+                        SensorDataCache::getActivity, 2, 123);
+                net = driver.train(net, trainer, trainIterator, holdOut, lastEpoch + 1, nbEpochs,
+                        (trained, epoch) -> {
+                            if ((epoch + 1) % checkpointEpochs == 0) {
+                                checkpoints.save(trained, epoch);
+                            }
+                        });
+                // the training is over, even if it stopped early
+                checkpoints.save(net, nbEpochs - 1);
+            }
+        } finally {
+            if (wrapper != null) {
+                wrapper.shutdown();
+            }
+        }
+
+        LOGGER.debug("Training stats ouput");
+        evaluateDataset(net, new CachedSessionIterator(data, sessions, trainSessions, batchSize,
+                SensorDataCache::getActivity, 2, 123));
+
+        // compute test
+        LOGGER.debug("Tests stats output");
+        evaluateDataset(net, new CachedSessionIterator(data, sessions, testSessions, batchSize,
+                SensorDataCache::getActivity, 2, 123));
+        // the trained network, for the InferenceServer
+        ModelSerializer.writeModel(net, modelPath, false);
+    }
+
+    /**
+     * Trains with a ParallelWrapper. The wrapper only averages the replicas in
+     * the network every nbWorkers * averagingFrequency batches, the batches
+     * fitted after the last averaging of a fit are lost. So the wrapper is
+     * given whole groups of batches : the batches of a group are read before it
+     * is fitted. The batches that do not fill a group are fitted by flush(),
+     * before a score, at the end of an epoch or of the training : the replicas
+     * are then averaged after fewer batches.
+     */
+    static class ParallelTrainer implements EarlyStoppingDriver.Trainer {
+
+        private final ParallelWrapper wrapper;
+        private final int groupSize;
+        private List<DataSet> group;
+
+        /**
+         * @param groupSize
+         *            The number of workers times the averaging frequency
+         */
+        ParallelTrainer(ParallelWrapper wrapper, int groupSize) {
+            this.wrapper = wrapper;
+            this.groupSize = groupSize;
+            this.group = new ArrayList<>(groupSize);
+        }
+
+        @Override
+        public void fit(DataSetIterator batches) {
+            while (batches.hasNext()) {
+                group.add(batches.next());
+                if (group.size() == groupSize) {
+                    wrapper.fit(new ExistingDataSetIterator(group));
+                    group = new ArrayList<>(groupSize);
+                }
+            }
+        }
+
+        /**
+         * Fits the batches of the unfilled group
+         */
+        @Override
+        public void flush() {
+            if (!group.isEmpty()) {
+                wrapper.fit(new ExistingDataSetIterator(group));
+                group = new ArrayList<>(groupSize);
+            }
+        }
+    }
+
+    /**
+     * Chooses the ND4J backend, the one with the highest priority is used. It
+     * must be called before the first use of ND4J.
+     */
+    @SuppressWarnings("unchecked")
+    public static void setBackendPriorities(int cpuPriority, int gpuPriority) throws NoSuchFieldException,
+            IllegalAccessException {
         // Please note that this way to set environement variables only works on Linux OS (tested on Ubuntu 16.04). 
         // On windows 10, it does not work
         Map<String, String> env = System.getenv();
@@ -81,21 +306,29 @@ public class RunExample {
         Map<String, String> writableEnv = (Map<String, String>) field.get(env);
         writableEnv.put("BACKEND_PRIORITY_CPU", Integer.toString(cpuPriority));
         writableEnv.put("BACKEND_PRIORITY_GPU", Integer.toString(gpuPriority));
-        
-        // CUDA options
-        CudaEnvironment.getInstance().getConfiguration()
-                .setMaximumDeviceCacheableLength(1024 * 1024 * 1024L)
-                .setMaximumDeviceCache(6L * 1024 * 1024 * 1024)
-                .setMaximumHostCacheableLength(1024 * 1024 * 1024L)
-                .setMaximumHostCache(6L * 1024 * 1024 * 1024L)
-                .setAllocationModel(Configuration.AllocationModel.CACHE_HOST)
-                .setMemoryModel(Configuration.MemoryModel.DELAYED);
-        CudaEnvironment.getInstance().notifyConfigurationApplied();
+    }
 
-        // ********* Building neural network ***********
+    /**
+     * @param interNeurons
+     *            The number of neurons of the LSTM layer
+     * @param tbpttForwardLength
+     *            The number of steps of a truncated back propagation forward
+     *            pass, 0 for a full back propagation
+     * @param tbpttBackwardLength
+     *            The number of steps the gradient is propagated back at each
+     *            truncated pass, between 1 and the forward length. Ignored for a
+     *            full back propagation
+     * @return The configuration of the activity network
+     */
+    public static MultiLayerConfiguration buildConfiguration(int interNeurons, double learningRate,
+            int tbpttForwardLength, int tbpttBackwardLength) {
+        if (tbpttForwardLength > 0 && (tbpttBackwardLength <= 0 || tbpttBackwardLength > tbpttForwardLength)) {
+            throw new IllegalArgumentException("The truncated back propagation length must be between 1 and the "
+                    + "forward length " + tbpttForwardLength + " : " + tbpttBackwardLength);
+        }
         NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
-        // The number of iterations in the training
-        builder.iterations(nbIterations);
+        // a single update by mini batch, the data are seen again at each epoch
+        builder.iterations(1);
         // The initial part of the gradient that will be use in each iteration.
         // A low value will slow the training, but higher value can make the network diverge
         builder.learningRate(learningRate);
@@ -103,8 +336,8 @@ public class RunExample {
         builder.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT);
         builder.seed(123);
         builder.biasInit(0);
-        // we use all the data each time we update the network
-        builder.miniBatch(false);
+        // the network is updated with mini batches of time series
+        builder.miniBatch(true);
         // A standard correct choices
         builder.updater(Updater.RMSPROP);
         builder.weightInit(WeightInit.XAVIER);
@@ -130,164 +363,93 @@ public class RunExample {
         // specify if the network must be trained
         listBuilder.pretrain(false);
         listBuilder.backprop(true);
-        MultiLayerConfiguration conf = listBuilder.build();
-        MultiLayerNetwork net = new MultiLayerNetwork(conf);
-        net.init();
-        // Here we set the port that will be used to deploy the graphical interface
-        System.setProperty("org.deeplearning4j.ui.port", Integer.toString(guiPort));
-        UIServer uiServer = UIServer.getInstance();
-        StatsStorage statsStorage = new InMemoryStatsStorage();
-        uiServer.attach(statsStorage);
-        net.setListeners(new ScoreIterationListener(5), new StatsListener(statsStorage, 5));
-
-        // ********** Import data ************
-        CSVReader reader = new CSVReader(",", csvPath, true);
-        LocalTime lastTime = null;
-        LocalDate lastDate = null;
-        List<INDArray> timeSeries = new ArrayList<>();
-        List<INDArray> labels = new ArrayList<>();
-        List<double[]> curTimeSerie = new ArrayList<>();
-        List<double[]> curLabel = new ArrayList<>();
-        int counter = 0;
-        while (reader.readNextLine()) {
-            if (counter % 1000 == 0) {
-                LOGGER.debug("Processing line {}", counter);
-            }
-            double accelX = Double.parseDouble(reader.getColName("acceleration_x"));
-            double accelY = Double.parseDouble(reader.getColName("acceleration_y"));
-            double accelZ = Double.parseDouble(reader.getColName("acceleration_z"));
-            double gyroX = Double.parseDouble(reader.getColName("gyro_x"));
-            double gyroY = Double.parseDouble(reader.getColName("gyro_y"));
-            double gyroZ = Double.parseDouble(reader.getColName("gyro_z"));
-            double wrist = Double.parseDouble(reader.getColName("wrist"));
-            double activity = Double.parseDouble(reader.getColName("activity"));
-            String date = reader.getColName("date");
-            String time = reader.getColName("time");
-            // Transform the time string into a java.time.LocalTime
-            LocalTime curTime = getCurTime(time);
-            // Transform the the date string into a java.time.LocalDate
-            LocalDate curDate = getCurDate(date);
-            // Determinates if this is a new time serie
-            if (!isTheSameTimeSerie(lastTime, lastDate, curTime, curDate)) {
-                // we create the new INDArrays and we move to the next 
-                if (lastTime != null) {
-                    // This is not the first time
-                    INDArray timeSerie = buildNDArray(curTimeSerie);
-                    INDArray label = buildNDArray(curLabel);
-                    timeSeries.add(timeSerie);
-                    labels.add(label);
-                    curTimeSerie.clear();
-                    curLabel.clear();
-                }
-            }
-            double[] curValsTab = new double[]{accelX, accelY, accelZ, gyroX, gyroY, gyroZ};
-//            double[] curLabelTab = new double[]{wrist,activity};
-//            double[] curLabelTab = new double[]{wrist==0?1:0,wrist==1?1:0};
-            double[] curLabelTab = new double[]{activity == 0 ? 1 : 0, activity == 1 ? 1 : 0};
-            curTimeSerie.add(curValsTab);
-            curLabel.add(curLabelTab);
-            lastTime = curTime;
-            lastDate = curDate;
-            counter++;
-        }
-        // train test separation
-        double trainRatio = 0.7;
-        List<INDArray> timeSeriesTest = new ArrayList<>();
-        List<INDArray> testLabels = new ArrayList<>();
-        int trainSize = (int) (timeSeries.size() * trainRatio);
-        Random random = new Random(33);
-        int maxTimeSeriesReali = timeSeries.stream().mapToInt(t -> t.rows()).max().getAsInt();
-        while (timeSeries.size() > trainSize) {
-            int index = random.nextInt(timeSeries.size());
-            timeSeriesTest.add(timeSeries.remove(index));
-            testLabels.add(labels.remove(index));
+        if (tbpttForwardLength > 0) {
+            // the gradient is only propagated over the last steps, so the cost of
+            // an update does not depend on the length of the series
+            listBuilder.backpropType(BackpropType.TruncatedBPTT);
+            listBuilder.tBPTTForwardLength(tbpttForwardLength);
+            listBuilder.tBPTTBackwardLength(tbpttBackwardLength);
         }
-        LOGGER.debug("Train time series set size {}", timeSeries.size());
-        LOGGER.debug("Test time series set siwe {}", timeSeriesTest.size());
-        // tensor building
-        INDArray[] trainDataMask = new INDArray[1];
-        INDArray trainData = buildTimeSerieTensor(timeSeries, maxTimeSeriesReali, trainDataMask);
-        int[] sh = trainData.shape();
-        LOGGER.trace("Nb shapes : {}", sh.length);
-        LOGGER.trace(" shape dims : {},{},{}", sh[0], sh[1], sh[2]);
-        INDArray[] trainLabelMask = new INDArray[1];
-        INDArray trainLabel = buildTimeSerieTensor(labels, maxTimeSeriesReali, trainLabelMask);
-
-        DataSet dataSet = new DataSet(trainData, trainLabel, trainDataMask[0], trainLabelMask[0]);
-        net.fit(dataSet);
-
-        LOGGER.debug("Training stats ouput");
-        evaluateDataset(net, timeSeries, labels, dataSet.numOutcomes());
-
-        // compute test
-        LOGGER.debug("Tests stats output");
-        evaluateDataset(net, timeSeriesTest, testLabels, dataSet.numOutcomes());
-    }
-
-    public static LocalTime getCurTime(String time) {
-        String[] vals = time.split(":");
-        int hour = Integer.parseInt(vals[0]);
-        int minute = Integer.parseInt(vals[1]);
-        int second = Integer.parseInt(vals[2]);
-        int nanoSec = Integer.parseInt(vals[3]);
-        return LocalTime.of(hour, minute, second, nanoSec);
+        return listBuilder.build();
     }
 
-    public static LocalDate getCurDate(String date) {
-        String[] vals = date.split("-");
-        int year = Integer.parseInt(vals[0]);
-        int month = Integer.parseInt(vals[1]);
-        int day = Integer.parseInt(vals[2]);
-        return LocalDate.of(year, month, day);
-    }
-
-    public static boolean isTheSameTimeSerie(LocalTime lastTime, LocalDate lastDate, LocalTime curTime,
-            LocalDate curDate) {
-        if (lastTime == null || lastDate == null || !lastDate.equals(curDate)) {
-            return false;
-        }
-        if ((curTime.getSecond() - lastTime.getSecond()) <= 2 && (curTime.getMinute() - lastTime.getMinute()) < 2
-                && (curTime.getHour() - lastTime.getHour()) < 2) {
-            return true;
-        }
-        return false;
+    /**
+     * Evaluates the network on the time series of an iterator, the padded steps
+     * are not evaluated
+     */
+    public static void evaluateDataset(MultiLayerNetwork net, DataSetIterator dataset) {
+        Evaluation eval = evaluate(net, dataset, Runtime.getRuntime().availableProcessors());
+        LOGGER.debug(eval.stats());
     }
 
-    public static INDArray buildNDArray(List<double[]> curTabList) {
-        INDArray res = Nd4j.zeros(curTabList.size(), curTabList.get(0).length);
-        for (int i = 0; i < curTabList.size(); i++) {
-            res.putRow(i, Nd4j.create(curTabList.get(i)));
+    /**
+     * Evaluates the network on the mini batches of an iterator. The batches are
+     * shared by a few threads, each with its own copy of the network, and the
+     * evaluations of the threads are merged.
+     *
+     * @param dataset
+     *            Gives masked mini batches of time series
+     * @param nbThreads
+     *            The number of threads, the network is copied for each thread
+     * @return The evaluation of all the batches
+     */
+    public static Evaluation evaluate(MultiLayerNetwork net, DataSetIterator dataset, int nbThreads) {
+        if (dataset.resetSupported()) {
+            dataset.reset();
         }
-        return res;
-    }
-
-    public static INDArray buildTimeSerieTensor(List<INDArray> timeSeries, int maxTimeSeriesReali, INDArray[] trainMask) {
-        INDArray res = Nd4j.zeros(maxTimeSeriesReali, timeSeries.get(0).columns(), timeSeries.size());
-        trainMask[0] = Nd4j.zeros(maxTimeSeriesReali, timeSeries.size());
-        for (int k = 0; k < timeSeries.size(); k++) {
-            int[] curShape = timeSeries.get(k).shape();
-            for (int i = 0; i < maxTimeSeriesReali; i++) {
-                if (curShape[0] <= i) {
-                    break;
-                }
-                for (int j = 0; j < timeSeries.get(0).columns(); j++) {
-                    res.put(new int[]{i, j, k}, timeSeries.get(k).getScalar(i, j));
-                }
-                trainMask[0].put(new int[]{i, k}, Nd4j.ones(1, 1));
+        int nbOutComes = dataset.totalOutcomes();
+        ExecutorService workers = Executors.newFixedThreadPool(nbThreads, r -> {
+            Thread thread = new Thread(r, "evaluation");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Evaluation>> results = new ArrayList<>(nbThreads);
+            for (int i = 0; i < nbThreads; i++) {
+                // the network keeps the state of its layers, it can't be shared
+                MultiLayerNetwork worker = i == 0 ? net : net.clone();
+                results.add(workers.submit(() -> evaluateBatches(worker, dataset, nbOutComes)));
+            }
+            Evaluation eval = new Evaluation(nbOutComes);
+            for (Future<Evaluation> result : results) {
+                eval.merge(result.get());
+            }
+            return eval;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
             }
+            throw new IllegalStateException(ex.getCause());
+        } finally {
+            workers.shutdownNow();
         }
-        return res;
     }
 
-    public static void evaluateDataset(MultiLayerNetwork net, List<INDArray> unPaddedDataset,
-            List<INDArray> unPaddedlabels, int nbOutComes) {
+    /**
+     * Evaluates the batches of the iterator until it is empty. The iterator is
+     * shared with the other threads.
+     */
+    private static Evaluation evaluateBatches(MultiLayerNetwork net, DataSetIterator dataset, int nbOutComes) {
         Evaluation eval = new Evaluation(nbOutComes);
-        for (int i = 0; i < unPaddedDataset.size(); i++) {
-            net.rnnClearPreviousState();
-            INDArray out = net.rnnTimeStep(unPaddedDataset.get(i));
-            eval.eval(unPaddedlabels.get(i), out);
+        while (true) {
+            DataSet batch;
+            synchronized (dataset) {
+                if (!dataset.hasNext()) {
+                    return eval;
+                }
+                batch = dataset.next();
+            }
+            INDArray out = net.output(batch.getFeatures(), false, batch.getFeaturesMaskArray(),
+                    batch.getLabelsMaskArray());
+            if (batch.getLabelsMaskArray() != null) {
+                eval.evalTimeSeries(batch.getLabels(), out, batch.getLabelsMaskArray());
+            } else {
+                eval.evalTimeSeries(batch.getLabels(), out);
+            }
         }
-        LOGGER.debug(eval.stats());
     }
 
 }
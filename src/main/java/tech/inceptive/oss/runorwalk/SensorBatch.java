@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+
+/**
+ * Consecutive rows of the sensor csv, stored in primitive arrays. The features
+ * of a row are contiguous, in the SensorDataCache.FEATURE_COLUMNS order.
+ *
+ * @author Andres Bel Alonso
+ */
+public class SensorBatch {
+
+    private int size = 0;
+    private long[] timestamps;
+    private float[] features;
+    private byte[] wrist;
+    private byte[] activity;
+
+    /**
+     * @param capacity
+     *            The expected number of rows
+     */
+    public SensorBatch(int capacity) {
+        capacity = Math.max(1, capacity);
+        timestamps = new long[capacity];
+        features = new float[capacity * SensorDataCache.NB_FEATURES];
+        wrist = new byte[capacity];
+        activity = new byte[capacity];
+    }
+
+    /**
+     * Adds a row at the end of the batch. The features are read from the given
+     * array.
+     */
+    public void add(long timestamp, float[] rowFeatures, byte rowWrist, byte rowActivity) {
+        if (size == timestamps.length) {
+            int capacity = size * 2;
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            features = Arrays.copyOf(features, capacity * SensorDataCache.NB_FEATURES);
+            wrist = Arrays.copyOf(wrist, capacity);
+            activity = Arrays.copyOf(activity, capacity);
+        }
+        timestamps[size] = timestamp;
+        System.arraycopy(rowFeatures, 0, features, size * SensorDataCache.NB_FEATURES,
+                SensorDataCache.NB_FEATURES);
+        wrist[size] = rowWrist;
+        activity[size] = rowActivity;
+        size++;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param row
+     *            The index of the row, the first one is 0
+     * @return The timestamp in nanos since the epoch
+     */
+    public long getTimestamp(int row) {
+        return timestamps[row];
+    }
+
+    /**
+     * @param feature
+     *            The index of the feature in SensorDataCache.FEATURE_COLUMNS
+     * @param row
+     *            The index of the row, the first one is 0
+     * @return The sensor value
+     */
+    public float getFeature(int feature, int row) {
+        return features[row * SensorDataCache.NB_FEATURES + feature];
+    }
+
+    public byte getWrist(int row) {
+        return wrist[row];
+    }
+
+    public byte getActivity(int row) {
+        return activity[row];
+    }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * A binary columnar copy of the sensor csv. Each column is stored as an array of
+ * primitives : the timestamps as epoch nanos longs (the local time of the
+ * capture, encoded as UTC), the sensor values as floats and the wrist and
+ * activity labels as bytes. The file is memory mapped, so opening it does not
+ * read the data.
+ *
+ * The cache keeps the size and the modification date of the csv it was built
+ * from, and it is built again when they change.
+ *
+ * @author Andres Bel Alonso
+ */
+public class SensorDataCache {
+
+    private static final Logger LOGGER = LogManager.getLogger(SensorDataCache.class);
+
+    public static final String[] FEATURE_COLUMNS = new String[]{"acceleration_x", "acceleration_y",
+        "acceleration_z", "gyro_x", "gyro_y", "gyro_z"};
+    public static final int NB_FEATURES = FEATURE_COLUMNS.length;
+
+    private static final int MAGIC = 0x52574331;
+    private static final int VERSION = 1;
+    // magic, version, source size, source modification date, number of rows
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 8;
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    private final int size;
+    private final String fingerprint;
+    private final LongBuffer timestamps;
+    private final FloatBuffer[] features;
+    private final ByteBuffer wrist;
+    private final ByteBuffer activity;
+
+    private SensorDataCache(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        channel.read(header, 0);
+        header.flip();
+        header.position(8);
+        long sourceSize = header.getLong();
+        long sourceDate = header.getLong();
+        long rows = header.getLong();
+        fingerprint = Long.toHexString(sourceSize) + "-" + Long.toHexString(sourceDate) + "-"
+                + Long.toHexString(rows);
+        if (rows * Long.BYTES > Integer.MAX_VALUE) {
+            throw new CSVReadingException("The cache has too many rows to be mapped : " + rows);
+        }
+        size = (int) rows;
+        long position = HEADER_SIZE;
+        timestamps = map(channel, position, (long) size * Long.BYTES).asLongBuffer();
+        position += (long) size * Long.BYTES;
+        features = new FloatBuffer[NB_FEATURES];
+        for (int i = 0; i < NB_FEATURES; i++) {
+            features[i] = map(channel, position, (long) size * Float.BYTES).asFloatBuffer();
+            position += (long) size * Float.BYTES;
+        }
+        wrist = map(channel, position, size);
+        position += size;
+        activity = map(channel, position, size);
+    }
+
+    /**
+     * Opens the cache of a csv file, and builds it if it does not exist or if the
+     * csv has changed since it was built.
+     *
+     * @param csvPath
+     *            The path to the sensor csv file
+     * @param cachePath
+     *            The path to the binary cache
+     * @return The mapped cache
+     */
+    public static SensorDataCache open(String csvPath, String cachePath) {
+        try {
+            File csv = new File(csvPath);
+            if (!isUpToDate(csv, Paths.get(cachePath))) {
+                LOGGER.info("Building the binary cache {} of {}", cachePath, csvPath);
+                convert(csvPath, cachePath);
+            }
+            try (FileChannel channel = FileChannel.open(Paths.get(cachePath), StandardOpenOption.READ)) {
+                SensorDataCache cache = new SensorDataCache(channel);
+                LOGGER.debug("Cache {} opened, {} rows", cachePath, cache.size());
+                return cache;
+            }
+        } catch (IOException ex) {
+            LOGGER.warn(ex);
+            throw new CSVReadingException(ex);
+        }
+    }
+
+    /**
+     * Reads the sensor csv once and writes its binary cache. The cache is written
+     * in a temporary file that replaces the cache at the end.
+     *
+     * The number of rows is only known at the end of the reading, so each column
+     * is first written in its own temporary file. The columns are copied after
+     * the header when they are complete.
+     *
+     * @param csvPath
+     *            The path to the sensor csv file
+     * @param cachePath
+     *            The path to the binary cache
+     */
+    public static void convert(String csvPath, String cachePath) throws IOException {
+        File csv = new File(csvPath);
+        long sourceSize = csv.length();
+        long sourceDate = csv.lastModified();
+        Path target = Paths.get(cachePath).toAbsolutePath();
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        // the columns in the order of the cache
+        List<ColumnWriter> columns = new ArrayList<>();
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ColumnWriter timeWriter = new ColumnWriter(target);
+            columns.add(timeWriter);
+            ColumnWriter[] featureWriters = new ColumnWriter[NB_FEATURES];
+            for (int i = 0; i < NB_FEATURES; i++) {
+                featureWriters[i] = new ColumnWriter(target);
+                columns.add(featureWriters[i]);
+            }
+            ColumnWriter wristWriter = new ColumnWriter(target);
+            columns.add(wristWriter);
+            ColumnWriter activityWriter = new ColumnWriter(target);
+            columns.add(activityWriter);
+
+            // the csv is read and parsed by the other threads of the pipeline,
+            // while this thread writes the columns
+            long rows = new IngestPipeline(csvPath).run(batch -> {
+                try {
+                    for (int row = 0; row < batch.size(); row++) {
+                        timeWriter.putLong(batch.getTimestamp(row));
+                        for (int i = 0; i < NB_FEATURES; i++) {
+                            featureWriters[i].putFloat(batch.getFeature(i, row));
+                        }
+                        wristWriter.put(batch.getWrist(row));
+                        activityWriter.put(batch.getActivity(row));
+                    }
+                } catch (IOException ex) {
+                    throw new CSVReadingException(ex);
+                }
+            });
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putLong(sourceSize).putLong(sourceDate).putLong(rows);
+            header.flip();
+            channel.write(header, 0);
+            long position = HEADER_SIZE;
+            for (ColumnWriter column : columns) {
+                position += column.copyTo(channel, position);
+            }
+            channel.force(false);
+        } catch (IOException | RuntimeException ex) {
+            Files.deleteIfExists(temp);
+            throw ex;
+        } finally {
+            for (ColumnWriter column : columns) {
+                column.close();
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return An id of the csv the cache was built from : its size, its
+     *         modification date and its number of rows
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @param row
+     *            The index of the row, the first one is 0
+     * @return The timestamp in nanos since the epoch
+     */
+    public long getTimestamp(int row) {
+        return timestamps.get(row);
+    }
+
+    /**
+     * @param feature
+     *            The index of the feature in FEATURE_COLUMNS
+     * @param row
+     *            The index of the row, the first one is 0
+     * @return The sensor value
+     */
+    public float getFeature(int feature, int row) {
+        return features[feature].get(row);
+    }
+
+    public byte getWrist(int row) {
+        return wrist.get(row);
+    }
+
+    public byte getActivity(int row) {
+        return activity.get(row);
+    }
+
+    private static boolean isUpToDate(File csv, Path cache) throws IOException {
+        if (!Files.exists(cache) || Files.size(cache) < HEADER_SIZE) {
+            return false;
+        }
+        try (FileChannel channel = FileChannel.open(cache, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(header, 0);
+            header.flip();
+            return header.getInt() == MAGIC && header.getInt() == VERSION && header.getLong() == csv.length()
+                    && header.getLong() == csv.lastModified();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long length) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, position, length).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Writes a column through a buffer, in a temporary file that is deleted when
+     * the writer is closed
+     */
+    private static class ColumnWriter implements Closeable {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        private long position = 0;
+
+        /**
+         * @param cache
+         *            The column file is created next to the cache
+         */
+        ColumnWriter(Path cache) throws IOException {
+            Path file = Files.createTempFile(cache.getParent(), cache.getFileName().toString(), ".col");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        }
+
+        void putLong(long value) throws IOException {
+            ensureRemaining(Long.BYTES);
+            buffer.putLong(value);
+        }
+
+        void putFloat(float value) throws IOException {
+            ensureRemaining(Float.BYTES);
+            buffer.putFloat(value);
+        }
+
+        void put(byte value) throws IOException {
+            ensureRemaining(1);
+            buffer.put(value);
+        }
+
+        /**
+         * Writes the whole column in another file
+         *
+         * @return The size of the column in bytes
+         */
+        long copyTo(FileChannel dest, long destPosition) throws IOException {
+            flush();
+            long copied = 0;
+            while (copied < position) {
+                copied += channel.transferTo(copied, position - copied, dest.position(destPosition + copied));
+            }
+            return position;
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void ensureRemaining(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+    }
+
+}
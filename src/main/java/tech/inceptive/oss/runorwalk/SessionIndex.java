@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+
+/**
+ * The sessions of a binary cache : the first row and the number of rows of
+ * each session. The rows stay in the mapped cache, only the index is in memory.
+ *
+ * The rows are ordered by time, and are cut in sessions by a SessionSegmenter.
+ *
+ * @author Andres Bel Alonso
+ */
+public class SessionIndex {
+
+    private final int size;
+    private final int[] starts;
+    private final int[] lengths;
+
+    private SessionIndex(int size, int[] starts, int[] lengths) {
+        this.size = size;
+        this.starts = starts;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Reads the timestamps of the cache, and finds the sessions
+     *
+     * @param data
+     *            The binary cache, ordered by time
+     * @param maxGap
+     *            The maximum time in nanos between two rows of a session
+     * @param maxLength
+     *            The maximum number of rows of a session, or 0 for no limit
+     * @return The index of the sessions
+     */
+    public static SessionIndex build(SensorDataCache data, long maxGap, int maxLength) {
+        Builder builder = new Builder();
+        // only the ranges are kept, the rows are not copied
+        SessionSegmenter segmenter = new SessionSegmenter(maxGap, maxLength, null, builder::add);
+        for (int row = 0; row < data.size(); row++) {
+            segmenter.add(data, row);
+        }
+        segmenter.flush();
+        return new SessionIndex(builder.size, builder.starts, builder.lengths);
+    }
+
+    private static final class Builder {
+
+        private int[] starts = new int[64];
+        private int[] lengths = new int[64];
+        private int size = 0;
+
+        void add(long firstRow, int length) {
+            if (size == starts.length) {
+                starts = Arrays.copyOf(starts, size * 2);
+                lengths = Arrays.copyOf(lengths, size * 2);
+            }
+            // the rows of the cache are indexed by an int
+            starts[size] = (int) firstRow;
+            lengths[size] = length;
+            size++;
+        }
+    }
+
+    /**
+     * @return The number of sessions
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return The first row of the session in the cache
+     */
+    public int getStart(int session) {
+        return starts[session];
+    }
+
+    /**
+     * @return The number of rows of the session
+     */
+    public int getLength(int session) {
+        return lengths[session];
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.function.Consumer;
+
+/**
+ * Cuts a stream of rows, ordered by time, in sessions (time series). A new
+ * session starts when the time between two rows is bigger than a gap, when the
+ * time goes back, or when the session has reached its maximum length.
+ *
+ * Only the open session is kept : each session is given to the consumers as
+ * soon as it is closed. The rows are copied in a SensorBatch only if there is a
+ * session consumer, a range consumer only gets the place of the session in the
+ * stream.
+ *
+ * @author Andres Bel Alonso
+ */
+public class SessionSegmenter {
+
+    public static final long DEFAULT_MAX_GAP = 2 * TimestampParser.NANOS_PER_SECOND;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /**
+     * Called with the place of each closed session in the stream
+     */
+    @FunctionalInterface
+    public interface RangeConsumer {
+
+        /**
+         * @param firstRow
+         *            The index of the first row of the session, counted from
+         *            the first added row
+         * @param length
+         *            The number of rows of the session
+         */
+        void accept(long firstRow, int length);
+    }
+
+    private final long maxGap;
+    private final int maxLength;
+    private final Consumer<SensorBatch> consumer;
+    private final RangeConsumer rangeConsumer;
+
+    private SensorBatch session = null;
+    private long sessionStart = 0;
+    private int sessionLength = 0;
+    private long lastTimestamp;
+    private long nbRows = 0;
+    private long nbSessions = 0;
+    private final float[] rowFeatures = new float[SensorDataCache.NB_FEATURES];
+
+    /**
+     * @param maxGap
+     *            The maximum time in nanos between two rows of a session
+     * @param maxLength
+     *            The maximum number of rows of a session, or 0 for no limit
+     * @param consumer
+     *            Called with each closed session. The session is not used by
+     *            the segmenter any more
+     */
+    public SessionSegmenter(long maxGap, int maxLength, Consumer<SensorBatch> consumer) {
+        this(maxGap, maxLength, consumer, null);
+    }
+
+    /**
+     * @param maxGap
+     *            The maximum time in nanos between two rows of a session
+     * @param maxLength
+     *            The maximum number of rows of a session, or 0 for no limit
+     * @param consumer
+     *            Called with each closed session, or null to not copy the rows
+     * @param rangeConsumer
+     *            Called with the place of each closed session, or null
+     */
+    public SessionSegmenter(long maxGap, int maxLength, Consumer<SensorBatch> consumer,
+            RangeConsumer rangeConsumer) {
+        if (maxGap < 0 || maxLength < 0) {
+            throw new IllegalArgumentException("The gap and the maximum length can't be negative");
+        }
+        this.maxGap = maxGap;
+        this.maxLength = maxLength;
+        this.consumer = consumer;
+        this.rangeConsumer = rangeConsumer;
+    }
+
+    /**
+     * Adds a row at the end of the open session, or starts a new session
+     *
+     * @param timestamp
+     *            The timestamp in nanos since the epoch
+     * @param features
+     *            The features of the row, in the SensorDataCache.FEATURE_COLUMNS
+     *            order
+     */
+    public void add(long timestamp, float[] features, byte wrist, byte activity) {
+        startRow(timestamp);
+        if (consumer != null) {
+            if (session == null) {
+                session = new SensorBatch(maxLength > 0 ? Math.min(maxLength, INITIAL_CAPACITY) : INITIAL_CAPACITY);
+            }
+            session.add(timestamp, features, wrist, activity);
+        }
+    }
+
+    /**
+     * Adds a row of the binary cache
+     *
+     * @param row
+     *            The index of the row in the cache
+     */
+    public void add(SensorDataCache data, int row) {
+        long timestamp = data.getTimestamp(row);
+        if (consumer == null) {
+            // only the place of the sessions is needed
+            startRow(timestamp);
+            return;
+        }
+        for (int i = 0; i < rowFeatures.length; i++) {
+            rowFeatures[i] = data.getFeature(i, row);
+        }
+        add(timestamp, rowFeatures, data.getWrist(row), data.getActivity(row));
+    }
+
+    /**
+     * Closes the open session if the row starts a new one, and counts the row
+     */
+    private void startRow(long timestamp) {
+        if (sessionLength > 0 && isNewSession(lastTimestamp, timestamp, sessionLength, maxGap, maxLength)) {
+            flush();
+        }
+        sessionLength++;
+        nbRows++;
+        lastTimestamp = timestamp;
+    }
+
+    /**
+     * @param lastTimestamp
+     *            The timestamp of the last row of the open session
+     * @param timestamp
+     *            The timestamp of the new row
+     * @param length
+     *            The number of rows of the open session
+     * @return true if the new row starts a new session
+     */
+    static boolean isNewSession(long lastTimestamp, long timestamp, int length, long maxGap, int maxLength) {
+        return timestamp < lastTimestamp || timestamp - lastTimestamp > maxGap
+                || (maxLength > 0 && length >= maxLength);
+    }
+
+    /**
+     * Closes the open session, if any, and gives it to the consumers. It must be
+     * called after the last row.
+     */
+    public void flush() {
+        if (sessionLength > 0) {
+            SensorBatch closed = session;
+            long closedStart = sessionStart;
+            int closedLength = sessionLength;
+            session = null;
+            sessionStart = nbRows;
+            sessionLength = 0;
+            nbSessions++;
+            if (rangeConsumer != null) {
+                rangeConsumer.accept(closedStart, closedLength);
+            }
+            if (consumer != null) {
+                consumer.accept(closed);
+            }
+        }
+    }
+
+    /**
+     * @return The number of sessions given to the consumers
+     */
+    public long getNbSessions() {
+        return nbSessions;
+    }
+
+}
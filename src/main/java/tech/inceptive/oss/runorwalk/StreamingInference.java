@@ -0,0 +1,475 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.deeplearning4j.nn.api.layers.RecurrentLayer;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Classifies the samples of many devices in real time with a trained
+ * recurrent network. The state of the recurrent layers is kept for each
+ * device, so each sample is classified knowing the previous samples of its
+ * device.
+ *
+ * The samples are stepped by a single thread. It waits for the samples of
+ * other devices during the latency budget, and steps all of them at once :
+ * the states of the devices are stacked in a mini batch. A device has at most
+ * one sample by step, its next samples wait for the next step. The state of a
+ * device without samples during the idle timeout is dropped, its next sample
+ * starts a new session.
+ *
+ * @author Andres Bel Alonso
+ */
+public class StreamingInference implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger(StreamingInference.class);
+
+    public static final long DEFAULT_LATENCY_BUDGET = TimeUnit.MILLISECONDS.toNanos(2);
+    public static final int DEFAULT_MAX_BATCH = 1024;
+    public static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toNanos(5);
+
+    private static final class Sample {
+
+        private final String device;
+        private final float[] features;
+        private final long arrival;
+        private final CompletableFuture<float[]> result = new CompletableFuture<>();
+
+        private Sample(String device, float[] features) {
+            this.device = device;
+            this.features = features;
+            this.arrival = System.nanoTime();
+        }
+    }
+
+    private static final class DeviceState {
+
+        // the states of all the recurrent layers, one after the other
+        private final float[] state;
+        private long lastSeen;
+
+        private DeviceState(int size) {
+            this.state = new float[size];
+        }
+    }
+
+    /**
+     * The recurrent layers and the time step of a network or of a computation
+     * graph. The recurrent layers are numbered from 0.
+     */
+    private interface RecurrentModel {
+
+        int getNbRecurrentLayers();
+
+        Map<String, INDArray> getState(int layer);
+
+        void setState(int layer, Map<String, INDArray> state);
+
+        /**
+         * @return The outputs of a time step, [samples, classes] for each output
+         */
+        INDArray[] step(INDArray input);
+
+        void clearState();
+    }
+
+    private final RecurrentModel model;
+    private final int nbFeatures;
+    private final long latencyBudget;
+    private final int maxBatch;
+    private final long idleTimeout;
+    // the names and sizes of the states of the recurrent layers
+    private final String[][] stateKeys;
+    private final int[][] stateSizes;
+    private final int stateSize;
+
+    private final BlockingQueue<Sample> queue = new LinkedBlockingQueue<>();
+    // only used by the step thread
+    private final Map<String, DeviceState> devices = new HashMap<>();
+    private final Thread stepThread;
+    private volatile boolean closed = false;
+
+    private volatile int nbDevices = 0;
+    private long nbSteps = 0;
+    private long nbSamples = 0;
+
+    /**
+     * @param net
+     *            The trained network, only used by this engine
+     * @param nbFeatures
+     *            The number of features of a sample
+     * @param latencyBudget
+     *            The time in nanos a sample can wait for the samples of other
+     *            devices
+     * @param maxBatch
+     *            The maximum number of samples of a step
+     * @param idleTimeout
+     *            The time in nanos after which the state of a device without
+     *            samples is dropped
+     */
+    public StreamingInference(MultiLayerNetwork net, int nbFeatures, long latencyBudget, int maxBatch,
+            long idleTimeout) {
+        this(networkModel(net), nbFeatures, latencyBudget, maxBatch, idleTimeout);
+    }
+
+    public StreamingInference(MultiLayerNetwork net) {
+        this(net, SensorDataCache.NB_FEATURES, DEFAULT_LATENCY_BUDGET, DEFAULT_MAX_BATCH, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * A computation graph with a single input. The probabilities of a sample are
+     * the ones of each output of the graph, one after the other : all the tasks
+     * of a multi task graph are given by a single step.
+     *
+     * @see #StreamingInference(MultiLayerNetwork, int, long, int, long)
+     */
+    public StreamingInference(ComputationGraph graph, int nbFeatures, long latencyBudget, int maxBatch,
+            long idleTimeout) {
+        this(graphModel(graph), nbFeatures, latencyBudget, maxBatch, idleTimeout);
+    }
+
+    private StreamingInference(RecurrentModel model, int nbFeatures, long latencyBudget, int maxBatch,
+            long idleTimeout) {
+        if (nbFeatures <= 0 || latencyBudget < 0 || maxBatch <= 0 || idleTimeout <= 0) {
+            throw new IllegalArgumentException("Invalid streaming parameters");
+        }
+        this.model = model;
+        this.nbFeatures = nbFeatures;
+        this.latencyBudget = latencyBudget;
+        this.maxBatch = maxBatch;
+        this.idleTimeout = idleTimeout;
+        // a first step gives the names and sizes of the states
+        model.clearState();
+        model.step(Nd4j.zeros(1, nbFeatures));
+        int nbLayers = model.getNbRecurrentLayers();
+        stateKeys = new String[nbLayers][];
+        stateSizes = new int[nbLayers][];
+        int size = 0;
+        for (int l = 0; l < nbLayers; l++) {
+            Map<String, INDArray> state = model.getState(l);
+            stateKeys[l] = state.keySet().stream().sorted().toArray(String[]::new);
+            stateSizes[l] = new int[stateKeys[l].length];
+            for (int j = 0; j < stateKeys[l].length; j++) {
+                stateSizes[l][j] = state.get(stateKeys[l][j]).columns();
+                size += stateSizes[l][j];
+            }
+        }
+        stateSize = size;
+        model.clearState();
+        stepThread = new Thread(this::run, "streaming-inference");
+        stepThread.setDaemon(true);
+        stepThread.start();
+    }
+
+    private static RecurrentModel networkModel(MultiLayerNetwork net) {
+        int[] layers = IntStream.range(0, net.getnLayers())
+                .filter(i -> net.getLayer(i) instanceof RecurrentLayer)
+                .toArray();
+        return new RecurrentModel() {
+
+            @Override
+            public int getNbRecurrentLayers() {
+                return layers.length;
+            }
+
+            @Override
+            public Map<String, INDArray> getState(int layer) {
+                return net.rnnGetPreviousState(layers[layer]);
+            }
+
+            @Override
+            public void setState(int layer, Map<String, INDArray> state) {
+                net.rnnSetPreviousState(layers[layer], state);
+            }
+
+            @Override
+            public INDArray[] step(INDArray input) {
+                return new INDArray[]{net.rnnTimeStep(input)};
+            }
+
+            @Override
+            public void clearState() {
+                net.rnnClearPreviousState();
+            }
+        };
+    }
+
+    private static RecurrentModel graphModel(ComputationGraph graph) {
+        String[] layers = Arrays.stream(graph.getLayers())
+                .filter(layer -> layer instanceof RecurrentLayer)
+                .map(layer -> layer.conf().getLayer().getLayerName())
+                .toArray(String[]::new);
+        return new RecurrentModel() {
+
+            @Override
+            public int getNbRecurrentLayers() {
+                return layers.length;
+            }
+
+            @Override
+            public Map<String, INDArray> getState(int layer) {
+                return graph.rnnGetPreviousState(layers[layer]);
+            }
+
+            @Override
+            public void setState(int layer, Map<String, INDArray> state) {
+                graph.rnnSetPreviousState(layers[layer], state);
+            }
+
+            @Override
+            public INDArray[] step(INDArray input) {
+                return graph.rnnTimeStep(input);
+            }
+
+            @Override
+            public void clearState() {
+                graph.rnnClearPreviousState();
+            }
+        };
+    }
+
+    /**
+     * Loads a network saved by the ModelSerializer
+     */
+    public static StreamingInference load(String modelPath, long latencyBudget, int maxBatch, long idleTimeout)
+            throws IOException {
+        MultiLayerNetwork net = ModelSerializer.restoreMultiLayerNetwork(modelPath, false);
+        return new StreamingInference(net, SensorDataCache.NB_FEATURES, latencyBudget, maxBatch, idleTimeout);
+    }
+
+    /**
+     * Loads a computation graph saved by the ModelSerializer
+     */
+    public static StreamingInference loadGraph(String modelPath, long latencyBudget, int maxBatch,
+            long idleTimeout) throws IOException {
+        ComputationGraph graph = ModelSerializer.restoreComputationGraph(modelPath, false);
+        return new StreamingInference(graph, SensorDataCache.NB_FEATURES, latencyBudget, maxBatch, idleTimeout);
+    }
+
+    /**
+     * Classifies the next sample of a device
+     *
+     * @param device
+     *            The id of the device
+     * @param features
+     *            The features of the sample, in the SensorDataCache.FEATURE_COLUMNS
+     *            order
+     * @return The probability of each class, when the sample has been stepped
+     */
+    public CompletableFuture<float[]> submit(String device, float[] features) {
+        if (features.length != nbFeatures) {
+            throw new IllegalArgumentException("A sample must have " + nbFeatures + " features, not "
+                    + features.length);
+        }
+        Sample sample = new Sample(device, features.clone());
+        if (closed) {
+            sample.result.completeExceptionally(new IllegalStateException("The engine is closed"));
+            return sample.result;
+        }
+        queue.add(sample);
+        if (closed && queue.remove(sample)) {
+            // closed while adding, the step thread may not see it
+            sample.result.completeExceptionally(new IllegalStateException("The engine is closed"));
+        }
+        return sample.result;
+    }
+
+    /**
+     * @return The number of features of a sample
+     */
+    public int getNbFeatures() {
+        return nbFeatures;
+    }
+
+    /**
+     * @return The number of devices with a state
+     */
+    public int getNbDevices() {
+        return nbDevices;
+    }
+
+    private void run() {
+        List<Sample> batch = new ArrayList<>(maxBatch);
+        // the samples of devices already in a step, in their arrival order
+        ArrayDeque<Sample> deferred = new ArrayDeque<>();
+        Set<String> blocked = new HashSet<>();
+        long evictionPeriod = Math.max(1, idleTimeout / 4);
+        long lastEviction = System.nanoTime();
+        try {
+            while (!closed) {
+                Sample first = deferred.isEmpty() ? queue.poll(evictionPeriod, TimeUnit.NANOSECONDS)
+                        : deferred.poll();
+                if (first != null) {
+                    batch.add(first);
+                    blocked.add(first.device);
+                    // all the deferred samples are moved, so the samples of a
+                    // device stay in order
+                    int nbDeferred = deferred.size();
+                    for (int i = 0; i < nbDeferred; i++) {
+                        Sample sample = deferred.poll();
+                        if (batch.size() < maxBatch && blocked.add(sample.device)) {
+                            batch.add(sample);
+                        } else {
+                            blocked.add(sample.device);
+                            deferred.add(sample);
+                        }
+                    }
+                    long deadline = first.arrival + latencyBudget;
+                    while (batch.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        Sample sample = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (sample == null) {
+                            break;
+                        }
+                        if (blocked.add(sample.device)) {
+                            batch.add(sample);
+                        } else {
+                            deferred.add(sample);
+                        }
+                    }
+                    step(batch);
+                    batch.clear();
+                    blocked.clear();
+                }
+                long now = System.nanoTime();
+                if (now - lastEviction >= evictionPeriod) {
+                    evict(now);
+                    lastEviction = now;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IllegalStateException closedEx = new IllegalStateException("The engine is closed");
+            batch.forEach(sample -> sample.result.completeExceptionally(closedEx));
+            deferred.forEach(sample -> sample.result.completeExceptionally(closedEx));
+            queue.forEach(sample -> sample.result.completeExceptionally(closedEx));
+        }
+    }
+
+    /**
+     * Steps the samples of different devices as a mini batch
+     */
+    private void step(List<Sample> batch) {
+        int size = batch.size();
+        long now = System.nanoTime();
+        DeviceState[] states = new DeviceState[size];
+        float[] input = new float[size * nbFeatures];
+        for (int k = 0; k < size; k++) {
+            Sample sample = batch.get(k);
+            System.arraycopy(sample.features, 0, input, k * nbFeatures, nbFeatures);
+            states[k] = devices.computeIfAbsent(sample.device, device -> new DeviceState(stateSize));
+            states[k].lastSeen = now;
+        }
+        nbDevices = devices.size();
+        try {
+            int offset = 0;
+            for (int l = 0; l < stateKeys.length; l++) {
+                Map<String, INDArray> layerState = new HashMap<>();
+                for (int j = 0; j < stateKeys[l].length; j++) {
+                    int keySize = stateSizes[l][j];
+                    float[] stacked = new float[size * keySize];
+                    for (int k = 0; k < size; k++) {
+                        System.arraycopy(states[k].state, offset, stacked, k * keySize, keySize);
+                    }
+                    layerState.put(stateKeys[l][j], Nd4j.create(stacked, new int[]{size, keySize}, 'c'));
+                    offset += keySize;
+                }
+                model.setState(l, layerState);
+            }
+            // a single time step : [devices, features] gives [devices, classes]
+            INDArray[] outs = model.step(Nd4j.create(input, new int[]{size, nbFeatures}, 'c'));
+            offset = 0;
+            for (int l = 0; l < stateKeys.length; l++) {
+                Map<String, INDArray> layerState = model.getState(l);
+                for (int j = 0; j < stateKeys[l].length; j++) {
+                    int keySize = stateSizes[l][j];
+                    float[] stacked = layerState.get(stateKeys[l][j]).dup('c').data().asFloat();
+                    for (int k = 0; k < size; k++) {
+                        System.arraycopy(stacked, k * keySize, states[k].state, offset, keySize);
+                    }
+                    offset += keySize;
+                }
+            }
+            int nbClasses = 0;
+            for (INDArray out : outs) {
+                nbClasses += out.columns();
+            }
+            float[][] results = new float[size][nbClasses];
+            int column = 0;
+            for (INDArray out : outs) {
+                int outClasses = out.columns();
+                float[] probabilities = out.dup('c').data().asFloat();
+                for (int k = 0; k < size; k++) {
+                    System.arraycopy(probabilities, k * outClasses, results[k], column, outClasses);
+                }
+                column += outClasses;
+            }
+            for (int k = 0; k < size; k++) {
+                batch.get(k).result.complete(results[k]);
+            }
+            nbSteps++;
+            nbSamples += size;
+        } catch (RuntimeException ex) {
+            LOGGER.warn("Step of {} samples failed", size, ex);
+            batch.forEach(sample -> sample.result.completeExceptionally(ex));
+        }
+    }
+
+    private void evict(long now) {
+        int before = devices.size();
+        devices.values().removeIf(state -> now - state.lastSeen > idleTimeout);
+        nbDevices = devices.size();
+        LOGGER.debug("{} samples in {} steps, {} devices, {} idle devices dropped", nbSamples, nbSteps,
+                nbDevices, before - nbDevices);
+    }
+
+    /**
+     * Stops the step thread. The samples not stepped yet fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        stepThread.interrupt();
+        try {
+            stepThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * Parses the date (y-M-d) and time (H:m:s:nanos) columns of the sensor csv into
+ * nanos since the epoch, the local time being encoded as UTC. It is the same
+ * value as LocalDateTime.of(date, time).toEpochSecond(ZoneOffset.UTC) * 1e9 +
+ * nanos, without building any object.
+ *
+ * The lines of a same day are often together, so the last parsed date is kept
+ * and not computed again. A parser is not thread safe, each thread needs its
+ * own.
+ *
+ * @author Andres Bel Alonso
+ */
+public class TimestampParser {
+
+    public static final long NANOS_PER_SECOND = 1_000_000_000L;
+    public static final long NANOS_PER_DAY = 24 * 60 * 60 * NANOS_PER_SECOND;
+
+    // days from 0000-03-01 to 1970-01-01
+    private static final long DAYS_0000_TO_1970 = 719468;
+
+    // the last parsed date
+    private char[] lastDate = new char[16];
+    private int lastDateLength = -1;
+    private long lastEpochDay;
+
+    // the CharSequence values are copied here
+    private char[] scratch = new char[32];
+
+    /**
+     * @param buf
+     *            The chars of the fields
+     * @param dateStart
+     *            The first char of the date
+     * @param dateEnd
+     *            The char after the date
+     * @param timeStart
+     *            The first char of the time
+     * @param timeEnd
+     *            The char after the time
+     * @return The timestamp in nanos since the epoch
+     */
+    public long parse(char[] buf, int dateStart, int dateEnd, int timeStart, int timeEnd) {
+        return getEpochDay(buf, dateStart, dateEnd) * NANOS_PER_DAY + getNanoOfDay(buf, timeStart, timeEnd);
+    }
+
+    /**
+     * @param date
+     *            The date, as y-M-d
+     * @param time
+     *            The time, as H:m:s:nanos
+     * @return The timestamp in nanos since the epoch
+     */
+    public long parse(CharSequence date, CharSequence time) {
+        int dateLength = date.length();
+        int timeLength = time.length();
+        if (scratch.length < dateLength + timeLength) {
+            scratch = new char[dateLength + timeLength];
+        }
+        for (int i = 0; i < dateLength; i++) {
+            scratch[i] = date.charAt(i);
+        }
+        for (int i = 0; i < timeLength; i++) {
+            scratch[dateLength + i] = time.charAt(i);
+        }
+        return parse(scratch, 0, dateLength, dateLength, dateLength + timeLength);
+    }
+
+    private long getEpochDay(char[] buf, int start, int end) {
+        int length = end - start;
+        if (length == lastDateLength) {
+            int i = 0;
+            while (i < length && buf[start + i] == lastDate[i]) {
+                i++;
+            }
+            if (i == length) {
+                return lastEpochDay;
+            }
+        }
+        int pos = start;
+        int year = 0;
+        int yearDigits = 0;
+        while (pos < end && buf[pos] != '-') {
+            year = year * 10 + digit(buf, pos, start, end);
+            yearDigits++;
+            pos++;
+        }
+        int month = 0;
+        int monthDigits = 0;
+        for (pos++; pos < end && buf[pos] != '-'; pos++) {
+            month = month * 10 + digit(buf, pos, start, end);
+            monthDigits++;
+        }
+        int day = 0;
+        int dayDigits = 0;
+        for (pos++; pos < end; pos++) {
+            day = day * 10 + digit(buf, pos, start, end);
+            dayDigits++;
+        }
+        if (yearDigits == 0 || yearDigits > 9 || monthDigits == 0 || monthDigits > 2 || dayDigits == 0
+                || dayDigits > 2 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)) {
+            throw invalid("date", buf, start, end);
+        }
+        long epochDay = toEpochDay(year, month, day);
+        if (lastDate.length < length) {
+            lastDate = new char[length];
+        }
+        System.arraycopy(buf, start, lastDate, 0, length);
+        lastDateLength = length;
+        lastEpochDay = epochDay;
+        return epochDay;
+    }
+
+    private static long getNanoOfDay(char[] buf, int start, int end) {
+        long hour = 0;
+        long minute = 0;
+        long second = 0;
+        long nano = 0;
+        // hours, minutes, seconds and nanos
+        int field = 0;
+        int digits = 0;
+        long value = 0;
+        for (int pos = start; pos <= end; pos++) {
+            if (pos == end || buf[pos] == ':') {
+                if (digits == 0 || (field < 3 && digits > 2) || digits > 9) {
+                    throw invalid("time", buf, start, end);
+                }
+                switch (field) {
+                    case 0:
+                        hour = value;
+                        break;
+                    case 1:
+                        minute = value;
+                        break;
+                    case 2:
+                        second = value;
+                        break;
+                    case 3:
+                        nano = value;
+                        break;
+                    default:
+                        throw invalid("time", buf, start, end);
+                }
+                field++;
+                digits = 0;
+                value = 0;
+            } else {
+                value = value * 10 + digit(buf, pos, start, end);
+                digits++;
+            }
+        }
+        if (field != 4 || hour > 23 || minute > 59 || second > 59) {
+            throw invalid("time", buf, start, end);
+        }
+        return ((hour * 60 + minute) * 60 + second) * NANOS_PER_SECOND + nano;
+    }
+
+    private static int digit(char[] buf, int pos, int start, int end) {
+        char c = buf[pos];
+        if (c < '0' || c > '9') {
+            throw invalid("timestamp", buf, start, end);
+        }
+        return c - '0';
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2:
+                return (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default:
+                return 31;
+        }
+    }
+
+    /**
+     * The days since 1970-01-01, counted from years that start in march so the
+     * leap day is the last day of the year
+     */
+    private static long toEpochDay(long year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        long era = Math.floorDiv(year, 400);
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - DAYS_0000_TO_1970;
+    }
+
+    private static CSVReadingException invalid(String what, char[] buf, int start, int end) {
+        return new CSVReadingException("The " + what + " " + new String(buf, start, end - start) + " is not valid");
+    }
+
+}
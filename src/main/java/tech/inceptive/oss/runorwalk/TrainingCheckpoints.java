@@ -0,0 +1,177 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.deeplearning4j.nn.api.Model;
+import org.deeplearning4j.nn.conf.ComputationGraphConfiguration;
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.graph.ComputationGraph;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.util.ModelSerializer;
+
+/**
+ * Saves the network and its updater at the end of some epochs, so a training
+ * can be resumed, or skipped when it is over. A checkpoint is only used with
+ * the same network configuration and the same data : its file name starts
+ * with a hash of the configuration and of a fingerprint of the data.
+ *
+ * @author Andres Bel Alonso
+ */
+public class TrainingCheckpoints {
+
+    private static final Logger LOGGER = LogManager.getLogger(TrainingCheckpoints.class);
+
+    private static final String EXTENSION = ".zip";
+
+    private final Path directory;
+    private final String key;
+    private final int nbKept;
+
+    /**
+     * @param directory
+     *            The directory of the checkpoints, created if needed
+     * @param conf
+     *            The configuration of the network, before the training
+     * @param dataFingerprint
+     *            Identifies the training data, and how it is given to the
+     *            network
+     * @param nbKept
+     *            The number of checkpoints kept, the older ones are deleted
+     */
+    public TrainingCheckpoints(String directory, MultiLayerConfiguration conf, String dataFingerprint,
+            int nbKept) throws IOException {
+        this(directory, nbKept, conf.toJson(), dataFingerprint);
+    }
+
+    /**
+     * The checkpoints of a computation graph
+     *
+     * @see #TrainingCheckpoints(String, MultiLayerConfiguration, String, int)
+     */
+    public TrainingCheckpoints(String directory, ComputationGraphConfiguration conf, String dataFingerprint,
+            int nbKept) throws IOException {
+        this(directory, nbKept, conf.toJson(), dataFingerprint);
+    }
+
+    private TrainingCheckpoints(String directory, int nbKept, String configuration, String dataFingerprint)
+            throws IOException {
+        if (nbKept <= 0) {
+            throw new IllegalArgumentException("At least one checkpoint must be kept");
+        }
+        this.directory = Paths.get(directory);
+        this.key = hash(configuration + "\n" + dataFingerprint);
+        this.nbKept = nbKept;
+        Files.createDirectories(this.directory);
+    }
+
+    private static String hash(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder res = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                res.append(String.format("%02x", digest[i]));
+            }
+            return res.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * @return The last saved epoch with this configuration and data, or -1 if
+     *         there is none
+     */
+    public int getLastEpoch() throws IOException {
+        List<Integer> epochs = listEpochs();
+        return epochs.isEmpty() ? -1 : epochs.get(epochs.size() - 1);
+    }
+
+    /**
+     * @return The network and its updater, as saved at the end of the epoch
+     */
+    public MultiLayerNetwork restore(int epoch) throws IOException {
+        Path file = fileOf(epoch);
+        LOGGER.info("Restoring the network from {}", file);
+        return ModelSerializer.restoreMultiLayerNetwork(file.toFile(), true);
+    }
+
+    /**
+     * @return The computation graph and its updater, as saved at the end of the
+     *         epoch
+     */
+    public ComputationGraph restoreGraph(int epoch) throws IOException {
+        Path file = fileOf(epoch);
+        LOGGER.info("Restoring the graph from {}", file);
+        return ModelSerializer.restoreComputationGraph(file.toFile(), true);
+    }
+
+    /**
+     * Saves the network and its updater at the end of an epoch, and deletes the
+     * oldest checkpoints. The file is written in a temporary file that is moved
+     * at the end, so a stopped save does not leave a broken checkpoint.
+     */
+    public void save(Model net, int epoch) throws IOException {
+        long start = System.nanoTime();
+        Path file = fileOf(epoch);
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        ModelSerializer.writeModel(net, temp.toFile(), true);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        List<Integer> epochs = listEpochs();
+        for (int i = 0; i < epochs.size() - nbKept; i++) {
+            Files.deleteIfExists(fileOf(epochs.get(i)));
+        }
+        LOGGER.debug("Checkpoint {} saved in {} ms", file, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private Path fileOf(int epoch) {
+        return directory.resolve(key + "-epoch-" + epoch + EXTENSION);
+    }
+
+    /**
+     * @return The saved epochs, in increasing order
+     */
+    private List<Integer> listEpochs() throws IOException {
+        List<Integer> epochs = new ArrayList<>();
+        String prefix = key + "-epoch-";
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + EXTENSION)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    epochs.add(Integer.parseInt(name.substring(prefix.length(), name.length() - EXTENSION.length())));
+                } catch (NumberFormatException ex) {
+                    LOGGER.warn("Unknown file {} in the checkpoints", file);
+                }
+            }
+        }
+        epochs.sort(null);
+        return epochs;
+    }
+
+}
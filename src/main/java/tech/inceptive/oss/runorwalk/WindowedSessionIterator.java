@@ -0,0 +1,250 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+/**
+ * Gives mini batches of fixed length windows of the sessions of the binary
+ * cache. A window starts every stride rows of a session, a session shorter
+ * than a window gives a single masked window. So the cost of a step depends on
+ * the window length, not on the length of the sessions.
+ *
+ * The windows are not stored : they are made when the batch is read, walking
+ * the sessions in a shuffled order. At each epoch the windows start at a random
+ * offset lower than the stride, so the rows after the last window of a session
+ * are seen on other epochs.
+ *
+ * @author Andres Bel Alonso
+ */
+public class WindowedSessionIterator implements DataSetIterator {
+
+    private static final long serialVersionUID = 1L;
+
+    private final SensorDataCache data;
+    private final SessionIndex index;
+    private final int[] sessions;
+    private final int windowLength;
+    private final int stride;
+    private final int batchSize;
+    private final CachedSessionIterator.RowClass rowClass;
+    private final int nbClasses;
+    private final Random random;
+    private final int nbWindows;
+
+    // the position of the next window : the session and its first row
+    private int nextSession;
+    private int nextOffset;
+    private int cursor;
+    private DataSetPreProcessor preProcessor;
+
+    /**
+     * @param data
+     *            The binary cache
+     * @param index
+     *            The sessions of the cache
+     * @param sessions
+     *            The indexes of the sessions given by this iterator
+     * @param windowLength
+     *            The number of rows of a window
+     * @param stride
+     *            The number of rows between the starts of two windows
+     * @param batchSize
+     *            The number of windows of a batch
+     * @param rowClass
+     *            Gives the label of each row
+     * @param nbClasses
+     *            The number of classes of the labels
+     * @param seed
+     *            The seed of the shuffle
+     */
+    public WindowedSessionIterator(SensorDataCache data, SessionIndex index, int[] sessions, int windowLength,
+            int stride, int batchSize, CachedSessionIterator.RowClass rowClass, int nbClasses, long seed) {
+        if (sessions.length == 0) {
+            throw new IllegalArgumentException("There must be at least one session");
+        }
+        if (windowLength <= 0 || stride <= 0 || batchSize <= 0) {
+            throw new IllegalArgumentException("The window length, the stride and the batch size must be positive");
+        }
+        this.data = data;
+        this.index = index;
+        this.sessions = sessions.clone();
+        this.windowLength = windowLength;
+        this.stride = stride;
+        this.batchSize = batchSize;
+        this.rowClass = rowClass;
+        this.nbClasses = nbClasses;
+        this.random = new Random(seed);
+        long windows = 0;
+        for (int session : sessions) {
+            windows += nbWindows(index.getLength(session), windowLength, stride);
+        }
+        this.nbWindows = (int) Math.min(Integer.MAX_VALUE, windows);
+        reset();
+    }
+
+    /**
+     * @return The number of windows of a session, when they start at its first
+     *         row
+     */
+    static int nbWindows(int sessionLength, int windowLength, int stride) {
+        if (sessionLength <= windowLength) {
+            return 1;
+        }
+        return (sessionLength - windowLength) / stride + 1;
+    }
+
+    /**
+     * Shuffles the sessions, and draws the offset of the first windows
+     */
+    @Override
+    public void reset() {
+        for (int i = sessions.length - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int tmp = sessions[i];
+            sessions[i] = sessions[j];
+            sessions[j] = tmp;
+        }
+        nextSession = 0;
+        nextOffset = firstOffset(sessions[0]);
+        cursor = 0;
+    }
+
+    private int firstOffset(int session) {
+        int free = index.getLength(session) - windowLength;
+        return free <= 0 ? 0 : random.nextInt(Math.min(stride, free + 1));
+    }
+
+    @Override
+    public boolean hasNext() {
+        return nextSession < sessions.length;
+    }
+
+    /**
+     * Reads the next windows, in the [minibatch, features, time] layout
+     */
+    @Override
+    public DataSet next() {
+        return next(batchSize);
+    }
+
+    /**
+     * Reads the next num windows, in the [minibatch, features, time] layout
+     */
+    @Override
+    public DataSet next(int num) {
+        if (num <= 0) {
+            throw new IllegalArgumentException("The number of windows must be positive : " + num);
+        }
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        int[] starts = new int[num];
+        int[] lengths = new int[num];
+        int size = 0;
+        while (size < num && hasNext()) {
+            int session = sessions[nextSession];
+            int sessionLength = index.getLength(session);
+            starts[size] = index.getStart(session) + nextOffset;
+            lengths[size] = Math.min(windowLength, sessionLength - nextOffset);
+            size++;
+            nextOffset += stride;
+            if (nextOffset + windowLength > sessionLength) {
+                nextSession++;
+                if (hasNext()) {
+                    nextOffset = firstOffset(sessions[nextSession]);
+                }
+            }
+        }
+        if (size < num) {
+            starts = Arrays.copyOf(starts, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+        cursor += size;
+        DataSet res = CachedSessionIterator.readBatch(data, starts, lengths, rowClass, nbClasses);
+        if (preProcessor != null) {
+            preProcessor.preProcess(res);
+        }
+        return res;
+    }
+
+    /**
+     * @return The number of windows of an epoch, when the windows start at the
+     *         first row of the sessions. With a random offset there can be less.
+     */
+    @Override
+    public int totalExamples() {
+        return nbWindows;
+    }
+
+    @Override
+    public int inputColumns() {
+        return SensorDataCache.NB_FEATURES;
+    }
+
+    @Override
+    public int totalOutcomes() {
+        return nbClasses;
+    }
+
+    @Override
+    public boolean resetSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean asyncSupported() {
+        return true;
+    }
+
+    @Override
+    public int batch() {
+        return batchSize;
+    }
+
+    @Override
+    public int cursor() {
+        return cursor;
+    }
+
+    @Override
+    public int numExamples() {
+        return totalExamples();
+    }
+
+    @Override
+    public void setPreProcessor(DataSetPreProcessor preProcessor) {
+        this.preProcessor = preProcessor;
+    }
+
+    @Override
+    public DataSetPreProcessor getPreProcessor() {
+        return preProcessor;
+    }
+
+    @Override
+    public List<String> getLabels() {
+        return null;
+    }
+
+}
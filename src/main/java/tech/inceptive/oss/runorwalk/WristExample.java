@@ -17,15 +17,17 @@ package tech.inceptive.oss.runorwalk;
 
 import java.io.IOException;
 import java.lang.reflect.Field;
-import java.time.LocalDate;
-import java.time.LocalTime;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.deeplearning4j.api.storage.StatsStorage;
+import org.deeplearning4j.datasets.iterator.AsyncDataSetIterator;
 import org.deeplearning4j.nn.api.OptimizationAlgorithm;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -35,14 +37,15 @@ import org.deeplearning4j.nn.conf.layers.RnnOutputLayer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.nn.weights.WeightInit;
 import org.deeplearning4j.optimize.listeners.ScoreIterationListener;
+import org.deeplearning4j.parallelism.ParallelWrapper;
 import org.deeplearning4j.ui.api.UIServer;
 import org.deeplearning4j.ui.stats.StatsListener;
 import org.deeplearning4j.ui.storage.InMemoryStatsStorage;
+import org.deeplearning4j.util.ModelSerializer;
 import org.nd4j.jita.conf.Configuration;
 import org.nd4j.jita.conf.CudaEnvironment;
 import org.nd4j.linalg.activations.Activation;
-import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
 /**
@@ -63,10 +66,45 @@ public class WristExample {
         int guiPort = 9301;
         int cpuPriority = 0;
         int gpuPriority = 1;
-        int nbIterations = 1500;
+        int nbEpochs = 50;
+        // the number of time series of a mini batch
+        int batchSize = 32;
+        // the number of mini batches read ahead of the training
+        int prefetchBatches = 4;
         double learningRate = 0.005;
         String csvPath = "/home/andres/Bureau/Kaggle/Datasets/Run Or Walk/dataset.csv";
+        String modelPath = csvPath + ".wrist.zip";
+        // the checkpoints of the training, a training is resumed from its last one
+        String checkpointDir = csvPath + ".checkpoints";
+        // the number of epochs between two checkpoints
+        int checkpointEpochs = 5;
+        // the number of mini batches between two scores of the test set
+        int evaluationIterations = 50;
+        // the training stops after this number of scores without improvement
+        int patience = 5;
+        // the maximum training time in minutes, 0 for no limit
+        long maxTrainingMinutes = 0;
+        // a new time serie starts after this time in nanos without data
+        long maxGap = SessionSegmenter.DEFAULT_MAX_GAP;
+        // the maximum number of steps of a time serie, 0 for no limit
+        int maxSessionLength = 0;
+        // the number of model replicas trained in parallel on the cpu cores, 0 to
+        // train a single model
+        int nbWorkers = 0;
+        // the number of mini batches fitted by each replica before they are averaged
+        int averagingFrequency = 3;
 
+        if (nbWorkers > 0) {
+            // the replicas are trained on the cpu backend
+            cpuPriority = gpuPriority + 1;
+            if (evaluationIterations % (nbWorkers * averagingFrequency) != 0) {
+                // the scores fall at the end of whole groups of batches, until a
+                // partial group is flushed at the end of an epoch
+                throw new IllegalArgumentException("The evaluation iterations " + evaluationIterations
+                        + " must be a multiple of the workers times the averaging frequency "
+                        + nbWorkers * averagingFrequency);
+            }
+        }
 
         // Backend options
         // Please note that this way to set environement variables only works on Linux OS (tested on Ubuntu 16.04). 
@@ -79,20 +117,22 @@ public class WristExample {
         writableEnv.put("BACKEND_PRIORITY_CPU", Integer.toString(cpuPriority));
         writableEnv.put("BACKEND_PRIORITY_GPU", Integer.toString(gpuPriority));
         
-        // CUDA options
-        CudaEnvironment.getInstance().getConfiguration()
-                .setMaximumDeviceCacheableLength(1024 * 1024 * 1024L)
-                .setMaximumDeviceCache(6L * 1024 * 1024 * 1024)
-                .setMaximumHostCacheableLength(1024 * 1024 * 1024L)
-                .setMaximumHostCache(6L * 1024 * 1024 * 1024L)
-                .setAllocationModel(Configuration.AllocationModel.CACHE_HOST)
-                .setMemoryModel(Configuration.MemoryModel.DELAYED);
-        CudaEnvironment.getInstance().notifyConfigurationApplied();
+        if (nbWorkers == 0) {
+            // CUDA options
+            CudaEnvironment.getInstance().getConfiguration()
+                    .setMaximumDeviceCacheableLength(1024 * 1024 * 1024L)
+                    .setMaximumDeviceCache(6L * 1024 * 1024 * 1024)
+                    .setMaximumHostCacheableLength(1024 * 1024 * 1024L)
+                    .setMaximumHostCache(6L * 1024 * 1024 * 1024L)
+                    .setAllocationModel(Configuration.AllocationModel.CACHE_HOST)
+                    .setMemoryModel(Configuration.MemoryModel.DELAYED);
+            CudaEnvironment.getInstance().notifyConfigurationApplied();
+        }
 
         // ********* Building neural network ***********
         NeuralNetConfiguration.Builder builder = new NeuralNetConfiguration.Builder();
-        // The number of iterations in the training
-        builder.iterations(nbIterations);
+        // a single update by mini batch, the data are seen again at each epoch
+        builder.iterations(1);
         // The initial part of the gradient that will be use in each iteration.
         // A low value will slow the training, but higher value can make the network diverge
         builder.learningRate(learningRate);
@@ -100,8 +140,8 @@ public class WristExample {
         builder.optimizationAlgo(OptimizationAlgorithm.STOCHASTIC_GRADIENT_DESCENT);
         builder.seed(123);
         builder.biasInit(0);
-        // we use all the data each time we update the network
-        builder.miniBatch(false);
+        // the network is updated with mini batches of time series
+        builder.miniBatch(true);
         // A standard correct choices
         builder.updater(Updater.RMSPROP);
         builder.weightInit(WeightInit.XAVIER);
@@ -127,8 +167,40 @@ public class WristExample {
         listBuilder.pretrain(false);
         listBuilder.backprop(true);
         MultiLayerConfiguration conf = listBuilder.build();
-        MultiLayerNetwork net = new MultiLayerNetwork(conf);
-        net.init();
+
+        // ********** Import data ************
+        // the csv is only parsed when its binary cache is missing or outdated
+        SensorDataCache data = SensorDataCache.open(csvPath, csvPath + ".bin");
+        // the sessions stay in the cache, only their position is kept
+        SessionIndex sessions = SessionIndex.build(data, maxGap, maxSessionLength);
+        // train test separation
+        double trainRatio = 0.7;
+        List<Integer> shuffled = IntStream.range(0, sessions.size()).boxed().collect(Collectors.toList());
+        Collections.shuffle(shuffled, new Random(33));
+        int trainSize = (int) (sessions.size() * trainRatio);
+        int[] trainSessions = shuffled.subList(0, trainSize).stream().mapToInt(Integer::intValue).toArray();
+        int[] testSessions = shuffled.subList(trainSize, shuffled.size()).stream().mapToInt(Integer::intValue)
+                .toArray();
+        LOGGER.debug("Train time series set size {}", trainSessions.length);
+        LOGGER.debug("Test time series set siwe {}", testSessions.length);
+        // the mini batches are made of series of similar lengths, and only padded
+        // to their longest serie. The next batches are read by a prefetch thread
+        DataSetIterator trainIterator = new AsyncDataSetIterator(new CachedSessionIterator(data, sessions,
+                trainSessions, batchSize, SensorDataCache::getWrist, 2, 123), prefetchBatches);
+        // the network is restored from the last checkpoint of the same
+        // configuration and data, if any
+        String trainingData = "wrist " + data.getFingerprint() + " gap " + maxGap
+                + " length " + maxSessionLength + " batch " + batchSize;
+        TrainingCheckpoints checkpoints = new TrainingCheckpoints(checkpointDir, conf, trainingData, 2);
+        int lastEpoch = checkpoints.getLastEpoch();
+        MultiLayerNetwork net;
+        if (lastEpoch >= 0) {
+            net = checkpoints.restore(lastEpoch);
+            LOGGER.info("Resuming the training after epoch {}", lastEpoch);
+        } else {
+            net = new MultiLayerNetwork(conf);
+            net.init();
+        }
         // Here we set the port that will be used to deploy the graphical interface
         System.setProperty("org.deeplearning4j.ui.port", Integer.toString(guiPort));
         UIServer uiServer = UIServer.getInstance();
@@ -136,86 +208,50 @@ public class WristExample {
         uiServer.attach(statsStorage);
         net.setListeners(new ScoreIterationListener(5), new StatsListener(statsStorage, 1));
 
-        // ********** Import data ************
-        CSVReader reader = new CSVReader(",", csvPath, true);
-        LocalTime lastTime = null;
-        LocalDate lastDate = null;
-        List<INDArray> timeSeries = new ArrayList<>();
-        List<INDArray> labels = new ArrayList<>();
-        List<double[]> curTimeSerie = new ArrayList<>();
-        List<double[]> curLabel = new ArrayList<>();
-        int counter = 0;
-        while (reader.readNextLine()) {
-            if (counter % 1000 == 0) {
-                LOGGER.debug("Processing line {}", counter);
+        // the test set is scored during the training, the best network is kept
+        EarlyStoppingDriver driver = new EarlyStoppingDriver(evaluationIterations, patience,
+                TimeUnit.MINUTES.toNanos(maxTrainingMinutes));
+        EarlyStoppingDriver.Trainer trainer = net::fit;
+        ParallelWrapper wrapper = null;
+        if (nbWorkers > 0) {
+            // each worker fits its own batches, the replicas are averaged in net
+            wrapper = new ParallelWrapper.Builder<>(net)
+                    .workers(nbWorkers)
+                    .averagingFrequency(averagingFrequency)
+                    .prefetchBuffer(prefetchBatches)
+                    .reportScoreAfterAveraging(true)
+                    .build();
+            trainer = new RunExample.ParallelTrainer(wrapper, nbWorkers * averagingFrequency);
+        }
+        try {
+            if (lastEpoch < nbEpochs - 1) {
+                DataSetIterator holdOut = new CachedSessionIterator(data, sessions, testSessions, batchSize,
+                        SensorDataCache::getWrist, 2, 123);
+                net = driver.train(net, trainer, trainIterator, holdOut, lastEpoch + 1, nbEpochs,
+                        (trained, epoch) -> {
+                            if ((epoch + 1) % checkpointEpochs == 0) {
+                                checkpoints.save(trained, epoch);
+                            }
+                        });
+                // the training is over, even if it stopped early
+                checkpoints.save(net, nbEpochs - 1);
             }
-            double accelX = Double.parseDouble(reader.getColName("acceleration_x"));
-            double accelY = Double.parseDouble(reader.getColName("acceleration_y"));
-            double accelZ = Double.parseDouble(reader.getColName("acceleration_z"));
-            double gyroX = Double.parseDouble(reader.getColName("gyro_x"));
-            double gyroY = Double.parseDouble(reader.getColName("gyro_y"));
-            double gyroZ = Double.parseDouble(reader.getColName("gyro_z"));
-            double wrist = Double.parseDouble(reader.getColName("wrist"));
-            double activity = Double.parseDouble(reader.getColName("activity"));
-            String date = reader.getColName("date");
-            String time = reader.getColName("time");
-            // Transform the time string into a java.time.LocalTime
-            LocalTime curTime = RunExample.getCurTime(time);
-            // Transform the the date string into a java.time.LocalDate
-            LocalDate curDate = RunExample.getCurDate(date);
-            // Determinates if this is a new time serie
-            if (!RunExample.isTheSameTimeSerie(lastTime, lastDate, curTime, curDate)) {
-                // we create the new INDArrays and we move to the next 
-                if (lastTime != null) {
-                    // This is not the first time
-                    INDArray timeSerie = RunExample.buildNDArray(curTimeSerie);
-                    INDArray label = RunExample.buildNDArray(curLabel);
-                    timeSeries.add(timeSerie);
-                    labels.add(label);
-                    curTimeSerie.clear();
-                    curLabel.clear();
-                }
+        } finally {
+            if (wrapper != null) {
+                wrapper.shutdown();
             }
-            double[] curValsTab = new double[]{accelX, accelY, accelZ, gyroX, gyroY, gyroZ};
-            double[] curLabelTab = new double[]{wrist==0?1:0,wrist==1?1:0};
-            curTimeSerie.add(curValsTab);
-            curLabel.add(curLabelTab);
-            lastTime = curTime;
-            lastDate = curDate;
-            counter++;
         }
-        // train test separation
-        double trainRatio = 0.7;
-        List<INDArray> timeSeriesTest = new ArrayList<>();
-        List<INDArray> testLabels = new ArrayList<>();
-        int trainSize = (int) (timeSeries.size() * trainRatio);
-        Random random = new Random(33);
-        int maxTimeSeriesReali = timeSeries.stream().mapToInt(t -> t.rows()).max().getAsInt();
-        while (timeSeries.size() > trainSize) {
-            int index = random.nextInt(timeSeries.size());
-            timeSeriesTest.add(timeSeries.remove(index));
-            testLabels.add(labels.remove(index));
-        }
-        LOGGER.debug("Train time series set size {}", timeSeries.size());
-        LOGGER.debug("Test time series set siwe {}", timeSeriesTest.size());
-        // tensor building
-        INDArray[] trainDataMask = new INDArray[1];
-        INDArray trainData = RunExample.buildTimeSerieTensor(timeSeries, maxTimeSeriesReali, trainDataMask);
-        int[] sh = trainData.shape();
-        LOGGER.trace("Nb shapes : {}", sh.length);
-        LOGGER.trace(" shape dims : {},{},{}", sh[0], sh[1], sh[2]);
-        INDArray[] trainLabelMask = new INDArray[1];
-        INDArray trainLabel = RunExample.buildTimeSerieTensor(labels, maxTimeSeriesReali, trainLabelMask);
-
-        DataSet dataSet = new DataSet(trainData, trainLabel, trainDataMask[0], trainLabelMask[0]);
-        net.fit(dataSet);
 
         LOGGER.debug("Training stats ouput");
-        RunExample.evaluateDataset(net, timeSeries, labels, dataSet.numOutcomes());
+        RunExample.evaluateDataset(net, new CachedSessionIterator(data, sessions, trainSessions, batchSize,
+                SensorDataCache::getWrist, 2, 123));
 
         // compute test
         LOGGER.debug("Tests stats output");
-        RunExample.evaluateDataset(net, timeSeriesTest, testLabels, dataSet.numOutcomes());
+        RunExample.evaluateDataset(net, new CachedSessionIterator(data, sessions, testSessions, batchSize,
+                SensorDataCache::getWrist, 2, 123));
+        // the trained network, for the InferenceServer
+        ModelSerializer.writeModel(net, modelPath, false);
     }
     
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * The bucketing of the sessions in batches of similar lengths
+ *
+ * @author Andres Bel Alonso
+ */
+public class BucketedSessionIteratorTest {
+
+    @Test
+    public void testBatchesStayInTheirBucket() {
+        // the sessions are their rank by length
+        int[] byLength = IntStream.range(0, 100).toArray();
+        int batchSize = 8;
+        int bucketBatches = 3;
+        List<int[]> batches = BucketedSessionIterator.makeBatches(byLength, batchSize, bucketBatches,
+                new Random(7));
+        // 4 full buckets of 24 sessions, and a last bucket of 4 sessions
+        assertEquals(13, batches.size());
+        int[] seen = new int[byLength.length];
+        for (int[] batch : batches) {
+            assertTrue(batch.length == batchSize || batch.length == 4);
+            int bucket = batch[0] / (batchSize * bucketBatches);
+            for (int session : batch) {
+                assertEquals(bucket, session / (batchSize * bucketBatches));
+                seen[session]++;
+            }
+        }
+        // each session is in a single batch
+        int[] once = new int[byLength.length];
+        Arrays.fill(once, 1);
+        assertArrayEquals(once, seen);
+    }
+
+    @Test
+    public void testBatchesAreShuffled() {
+        int[] byLength = IntStream.range(0, 64).toArray();
+        List<int[]> first = BucketedSessionIterator.makeBatches(byLength, 4, 4, new Random(1));
+        List<int[]> second = BucketedSessionIterator.makeBatches(byLength, 4, 4, new Random(2));
+        boolean same = true;
+        for (int i = 0; i < first.size(); i++) {
+            same &= Arrays.equals(first.get(i), second.get(i));
+        }
+        assertFalse(same);
+        // the same seed gives the same batches
+        List<int[]> again = BucketedSessionIterator.makeBatches(byLength, 4, 4, new Random(1));
+        for (int i = 0; i < first.size(); i++) {
+            assertArrayEquals(first.get(i), again.get(i));
+        }
+    }
+
+}
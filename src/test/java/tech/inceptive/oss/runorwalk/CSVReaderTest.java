@@ -0,0 +1,162 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * The tokenizer and the utf8 decoding of the CSVReader
+ *
+ * @author Andres Bel Alonso
+ */
+public class CSVReaderTest {
+
+    private static final String R = "\uFFFD";
+
+    @Test
+    public void testSplitsFields() {
+        CSVReader reader = new CSVReader(",", stream("a,b,c\n1,,3\n"), true, "UTF-8", null);
+        assertTrue(reader.readNextLine());
+        assertArrayEquals(new String[]{"1", "", "3"}, reader.getSeparetedCurLine());
+        assertEquals("b", reader.getHeaderName(1));
+        assertFalse(reader.readNextLine());
+    }
+
+    /**
+     * The lines of an escaped field are joined without the line break
+     */
+    @Test
+    public void testEscapedFieldOnSeveralLines() {
+        CSVReader reader = new CSVReader(",", stream("\"a,\nb\",c\nd,e\n"), false, "UTF-8", "\"");
+        assertTrue(reader.readNextLine());
+        assertArrayEquals(new String[]{"a,b", "c"}, reader.getSeparetedCurLine());
+        assertTrue(reader.readNextLine());
+        assertArrayEquals(new String[]{"d", "e"}, reader.getSeparetedCurLine());
+    }
+
+    @Test
+    public void testDecodesValidSequences() {
+        assertEquals("\u00E9\u20AC\uD83D\uDE00", decode(0xC3, 0xA9, 0xE2, 0x82, 0xAC, 0xF0, 0x9F, 0x98, 0x80));
+    }
+
+    @Test
+    public void testReplacesOverlongForms() {
+        assertEquals(R + R + "x", decode(0xC0, 0xAF, 'x'));
+        assertEquals(R + R + "x", decode(0xC1, 0xBF, 'x'));
+        assertEquals(R + R + R + "x", decode(0xE0, 0x80, 0xAF, 'x'));
+        assertEquals(R + R + R + R + "x", decode(0xF0, 0x80, 0x80, 0xAF, 'x'));
+    }
+
+    @Test
+    public void testReplacesSurrogates() {
+        assertEquals(R + "x", decode(0xED, 0xA0, 0x80, 'x'));
+        assertEquals(R + "x", decode(0xED, 0xBF, 0xBF, 'x'));
+    }
+
+    @Test
+    public void testReplacesCodePointsAboveTheMaximum() {
+        assertEquals(R + R + R + R + "x", decode(0xF4, 0x90, 0x80, 0x80, 'x'));
+        assertEquals(R + R + R + R + "x", decode(0xF5, 0x80, 0x80, 0x80, 'x'));
+        assertEquals(R + R + R + R + "x", decode(0xF7, 0xBF, 0xBF, 0xBF, 'x'));
+    }
+
+    @Test
+    public void testReplacesBrokenAndTruncatedSequences() {
+        // the byte after the valid prefix is decoded again
+        assertEquals(R + "x", decode(0xE2, 0x82, 'x'));
+        assertEquals(R + "\u00E9", decode(0xE2, 0xC3, 0xA9));
+        assertEquals(R + R, decode(0x80, 0xBF));
+        // at the end of the input
+        assertEquals("x" + R, decode('x', 0xF0, 0x9F, 0x98));
+    }
+
+    /**
+     * The bytes are read a few at a time, so the sequences are cut between two
+     * reads. The result must be the one of the charset decoder.
+     */
+    @Test
+    public void testDecodesAsTheCharset() {
+        Random random = new Random(7);
+        for (int t = 0; t < 5000; t++) {
+            byte[] bytes = new byte[random.nextInt(16)];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = random.nextInt(4) == 0 ? (byte) ('a' + random.nextInt(3))
+                        : (byte) (0x80 + random.nextInt(0x80));
+            }
+            String expected = new String(bytes, StandardCharsets.UTF_8);
+            assertEquals(expected, readLine(new SlowStream(bytes, random)));
+        }
+    }
+
+    private static InputStream stream(String content) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return readLine(new ByteArrayInputStream(bytes));
+    }
+
+    private static String readLine(InputStream input) {
+        CSVReader reader = new CSVReader("\t", input, false, "UTF-8", null);
+        return reader.readNextLine() ? reader.getCurLine() : "";
+    }
+
+    /**
+     * Gives 1 to 3 bytes by read
+     */
+    private static class SlowStream extends InputStream {
+
+        private final byte[] bytes;
+        private final Random random;
+        private int position = 0;
+
+        SlowStream(byte[] bytes, Random random) {
+            this.bytes = bytes;
+            this.random = random;
+        }
+
+        @Override
+        public int read() {
+            return position < bytes.length ? bytes[position++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (position >= bytes.length) {
+                return -1;
+            }
+            int n = Math.min(Math.min(len, 1 + random.nextInt(3)), bytes.length - position);
+            System.arraycopy(bytes, position, b, off, n);
+            position += n;
+            return n;
+        }
+    }
+
+}
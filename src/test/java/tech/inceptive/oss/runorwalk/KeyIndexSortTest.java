@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import org.junit.Test;
+
+/**
+ * The order and the stability of the KeyIndexSort, with its natural run merge
+ * and its fork join merge sort
+ *
+ * @author Andres Bel Alonso
+ */
+public class KeyIndexSortTest {
+
+    @Test
+    public void testEmptyAndSingleKey() {
+        assertEquals(0, KeyIndexSort.sortedIndexes(new long[0]).length);
+        assertArrayEquals(new int[]{0}, KeyIndexSort.sortedIndexes(new long[]{5}));
+    }
+
+    @Test
+    public void testSmallInput() {
+        assertArrayEquals(new int[]{1, 3, 0, 2}, KeyIndexSort.sortedIndexes(new long[]{3, 1, 3, 2}));
+    }
+
+    /**
+     * A sorted file with some lines appended : a few ascending runs
+     */
+    @Test
+    public void testNaturalRunsAreStable() {
+        long[] keys = new long[50_000];
+        int runLength = keys.length / 5;
+        for (int i = 0; i < keys.length; i++) {
+            // 5 ascending runs, with equal keys in each run and between the runs
+            keys[i] = (i % runLength) / 3;
+        }
+        checkStableOrder(keys);
+    }
+
+    /**
+     * Too many runs for the natural merge : the fork join sort is used
+     */
+    @Test
+    public void testRandomKeysAreStable() {
+        Random random = new Random(2);
+        long[] keys = new long[100_000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = random.nextInt(1000) - 500;
+        }
+        checkStableOrder(keys);
+    }
+
+    @Test
+    public void testExtremeKeys() {
+        long[] keys = new long[]{Long.MAX_VALUE, Long.MIN_VALUE, 0, Long.MIN_VALUE, Long.MAX_VALUE};
+        assertArrayEquals(new int[]{1, 3, 2, 0, 4}, KeyIndexSort.sortedIndexes(keys));
+    }
+
+    /**
+     * Compares the indexes with a stable sort of boxed indexes
+     */
+    private static void checkStableOrder(long[] keys) {
+        long[] copy = keys.clone();
+        int[] expected = IntStream.range(0, keys.length).boxed()
+                .sorted(Comparator.comparingLong(i -> keys[i]))
+                .mapToInt(Integer::intValue)
+                .toArray();
+        assertArrayEquals(expected, KeyIndexSort.sortedIndexes(keys));
+        // the keys are not modified
+        assertArrayEquals(copy, keys);
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The sessions found in a binary cache built from a small csv
+ *
+ * @author Andres Bel Alonso
+ */
+public class SessionIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testGapTimeBackAndMaxLength() throws IOException {
+        // the seconds of the rows : a gap of 3 s after 2, the time goes back
+        // after 6, and 7 rows 1 s apart
+        int[] seconds = {0, 1, 2, 5, 6, 4, 5, 6, 7, 8, 9, 10};
+        SensorDataCache data = openCache(seconds);
+        assertEquals(seconds.length, data.size());
+
+        SessionIndex index = SessionIndex.build(data, SessionSegmenter.DEFAULT_MAX_GAP, 0);
+        assertSessions(index, new int[]{0, 3, 5}, new int[]{3, 2, 7});
+
+        // the 7 rows are cut every 3 rows
+        index = SessionIndex.build(data, SessionSegmenter.DEFAULT_MAX_GAP, 3);
+        assertSessions(index, new int[]{0, 3, 5, 8, 11}, new int[]{3, 2, 3, 3, 1});
+
+        // with a bigger gap, only the time going back cuts
+        index = SessionIndex.build(data, 3 * TimestampParser.NANOS_PER_SECOND, 0);
+        assertSessions(index, new int[]{0, 5}, new int[]{5, 7});
+    }
+
+    @Test
+    public void testManySessions() throws IOException {
+        // more sessions than the initial capacity of the index
+        int[] seconds = new int[200];
+        for (int i = 0; i < seconds.length; i++) {
+            seconds[i] = i * 10;
+        }
+        SessionIndex index = SessionIndex.build(openCache(seconds), SessionSegmenter.DEFAULT_MAX_GAP, 0);
+        assertEquals(200, index.size());
+        assertEquals(199, index.getStart(199));
+        assertEquals(1, index.getLength(199));
+    }
+
+    private SensorDataCache openCache(int[] seconds) throws IOException {
+        File csv = folder.newFile("sessions.csv");
+        try (PrintWriter pw = new PrintWriter(csv, "UTF8")) {
+            pw.println("date,time,username,wrist,activity,acceleration_x,acceleration_y,acceleration_z,"
+                    + "gyro_x,gyro_y,gyro_z");
+            for (int second : seconds) {
+                pw.println("2017-6-30,13:" + second / 60 + ":" + second % 60 + ":0,viktor,0,1,"
+                        + second + ",0,0,0,0,0");
+            }
+        }
+        return SensorDataCache.open(csv.getPath(), new File(folder.getRoot(), "sessions.bin").getPath());
+    }
+
+    private static void assertSessions(SessionIndex index, int[] starts, int[] lengths) {
+        assertEquals(starts.length, index.size());
+        for (int i = 0; i < starts.length; i++) {
+            assertEquals("start of " + i, starts[i], index.getStart(i));
+            assertEquals("length of " + i, lengths[i], index.getLength(i));
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * The session cut rules of the SessionSegmenter, and what its consumers are
+ * given
+ *
+ * @author Andres Bel Alonso
+ */
+public class SessionSegmenterTest {
+
+    @Test
+    public void testIsNewSession() {
+        // the gap is included in the session
+        assertFalse(SessionSegmenter.isNewSession(10, 13, 1, 3, 0));
+        assertTrue(SessionSegmenter.isNewSession(10, 14, 1, 3, 0));
+        // the time goes back
+        assertTrue(SessionSegmenter.isNewSession(10, 9, 1, 3, 0));
+        assertFalse(SessionSegmenter.isNewSession(10, 10, 1, 3, 0));
+        // the maximum length, 0 for no limit
+        assertTrue(SessionSegmenter.isNewSession(10, 11, 4, 3, 4));
+        assertFalse(SessionSegmenter.isNewSession(10, 11, 3, 3, 4));
+        assertFalse(SessionSegmenter.isNewSession(10, 11, 1_000_000, 3, 0));
+    }
+
+    @Test
+    public void testSessionsAndRanges() {
+        List<String> sessions = new ArrayList<>();
+        List<String> ranges = new ArrayList<>();
+        SessionSegmenter segmenter = new SessionSegmenter(3, 4,
+                session -> sessions.add(session.size() + "@" + session.getTimestamp(0)),
+                (firstRow, length) -> ranges.add(firstRow + "+" + length));
+        // a gap after 2, the time goes back after 11, a cut at 4 rows after 8
+        long[] timestamps = {0, 1, 2, 10, 11, 5, 6, 7, 8, 9, 10, 11, 12};
+        float[] features = new float[SensorDataCache.NB_FEATURES];
+        for (long timestamp : timestamps) {
+            segmenter.add(timestamp, features, (byte) 0, (byte) 1);
+        }
+        assertEquals(3, segmenter.getNbSessions());
+        segmenter.flush();
+        // nothing is open any more
+        segmenter.flush();
+        assertEquals(4, segmenter.getNbSessions());
+        assertEquals("[3@0, 2@10, 4@5, 4@9]", sessions.toString());
+        assertEquals("[0+3, 3+2, 5+4, 9+4]", ranges.toString());
+    }
+
+    @Test
+    public void testRowsAreCopied() {
+        List<SensorBatch> sessions = new ArrayList<>();
+        SessionSegmenter segmenter = new SessionSegmenter(SessionSegmenter.DEFAULT_MAX_GAP, 0, sessions::add);
+        float[] features = new float[SensorDataCache.NB_FEATURES];
+        for (int i = 0; i < 300; i++) {
+            features[2] = i;
+            segmenter.add(i * 1_000_000L, features, (byte) (i % 2), (byte) 1);
+        }
+        segmenter.flush();
+        assertEquals(1, sessions.size());
+        SensorBatch session = sessions.get(0);
+        assertEquals(300, session.size());
+        assertEquals(299, session.getFeature(2, 299), 0);
+        assertEquals(1, session.getWrist(299));
+        assertEquals(299_000_000L, session.getTimestamp(299));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeGap() {
+        new SessionSegmenter(-1, 0, session -> {
+        });
+    }
+
+}
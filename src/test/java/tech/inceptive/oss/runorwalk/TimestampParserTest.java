@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Inceptive.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tech.inceptive.oss.runorwalk;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+import org.junit.Test;
+
+import tech.inceptive.oss.runorwalk.CSVReader.CSVReadingException;
+
+/**
+ * The TimestampParser against LocalDateTime, and its range checks
+ *
+ * @author Andres Bel Alonso
+ */
+public class TimestampParserTest {
+
+    @Test
+    public void testParse() {
+        TimestampParser parser = new TimestampParser();
+        assertEquals(0, parser.parse("1970-1-1", "0:0:0:0"));
+        assertEquals(expected(2017, 6, 30, 13, 51, 15, 847724020),
+                parser.parse("2017-6-30", "13:51:15:847724020"));
+        assertEquals(expected(2017, 7, 1, 9, 5, 0, 5), parser.parse("2017-07-01", "09:05:00:5"));
+        // before the epoch, and a leap day
+        assertEquals(expected(1900, 2, 28, 23, 59, 59, 999999999), parser.parse("1900-2-28", "23:59:59:999999999"));
+        assertEquals(expected(2000, 2, 29, 12, 0, 0, 0), parser.parse("2000-2-29", "12:0:0:0"));
+    }
+
+    @Test
+    public void testParseChars() {
+        char[] line = "x,2017-6-30,13:51:15:847724020,0".toCharArray();
+        assertEquals(expected(2017, 6, 30, 13, 51, 15, 847724020), new TimestampParser().parse(line, 2, 11, 12, 30));
+    }
+
+    /**
+     * The kept date must not be used for another day, even with the same length
+     */
+    @Test
+    public void testDateCacheAcrossDays() {
+        TimestampParser parser = new TimestampParser();
+        LocalDate date = LocalDate.of(2016, 12, 25);
+        for (int i = 0; i < 800; i++) {
+            String text = date.getYear() + "-" + date.getMonthValue() + "-" + date.getDayOfMonth();
+            long epochDay = date.toEpochDay();
+            assertEquals(text, epochDay * TimestampParser.NANOS_PER_DAY + 7, parser.parse(text, "0:0:0:7"));
+            // the same day again, from the kept date
+            assertEquals(text, epochDay * TimestampParser.NANOS_PER_DAY + 8, parser.parse(text, "0:0:0:8"));
+            date = date.plusDays(1);
+        }
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testInvalidMonth() {
+        new TimestampParser().parse("2017-13-1", "0:0:0:0");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testInvalidDay() {
+        new TimestampParser().parse("2017-4-31", "0:0:0:0");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testNoLeapDay() {
+        new TimestampParser().parse("1900-2-29", "0:0:0:0");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testInvalidHour() {
+        new TimestampParser().parse("2017-6-30", "24:0:0:0");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testInvalidSecond() {
+        new TimestampParser().parse("2017-6-30", "13:51:60:0");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testMissingNanos() {
+        new TimestampParser().parse("2017-6-30", "13:51:15");
+    }
+
+    @Test(expected = CSVReadingException.class)
+    public void testNotADigit() {
+        new TimestampParser().parse("2017-6-3O", "13:51:15:0");
+    }
+
+    /**
+     * An invalid date is not kept, it fails again
+     */
+    @Test(expected = CSVReadingException.class)
+    public void testInvalidDateNotKept() {
+        TimestampParser parser = new TimestampParser();
+        try {
+            parser.parse("2017-2-30", "0:0:0:0");
+        } catch (CSVReadingException ex) {
+            // expected
+        }
+        parser.parse("2017-2-30", "0:0:0:0");
+    }
+
+    private static long expected(int year, int month, int day, int hour, int minute, int second, int nanos) {
+        return LocalDateTime.of(year, month, day, hour, minute, second).toEpochSecond(ZoneOffset.UTC)
+                * TimestampParser.NANOS_PER_SECOND + nanos;
+    }
+
+}